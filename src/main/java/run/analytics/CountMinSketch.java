@@ -0,0 +1,80 @@
+package run.analytics;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Count-min sketch: estimates how many times each key has been counted in a
+ * fixed amount of memory, however many distinct keys there are. Estimates
+ * are never too low, and too high by at most about
+ * <code>e / width</code> of the total count with probability
+ * <code>1 - e^-depth</code>.
+ *
+ * Not thread-safe.
+ */
+public class CountMinSketch {
+    private final long[][] counters;
+    private final int width;
+    private long total;
+
+    public CountMinSketch(int depth, int width) {
+        this.counters = new long[depth][width];
+        this.width = width;
+    }
+
+    /**
+     * Count a key once.
+     *
+     * @param key The key
+     *
+     * @return The new estimated count for the key
+     */
+    public long add(String key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < counters.length; row++) {
+            int column = Math.floorMod(h1 + row * h2, width);
+            estimate = Math.min(estimate, ++counters[row][column]);
+        }
+        total++;
+        return estimate;
+    }
+
+    /**
+     * Get the estimated count for a key.
+     *
+     * @param key The key
+     *
+     * @return The estimate, never less than the true count
+     */
+    public long estimate(String key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < counters.length; row++) {
+            estimate = Math.min(estimate, counters[row][Math.floorMod(h1 + row * h2, width)]);
+        }
+        return estimate;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a 64-bit finaliser so both halves are well mixed
+    static long hash64(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
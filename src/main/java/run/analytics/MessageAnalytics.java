@@ -0,0 +1,183 @@
+package run.analytics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import run.model.OutboxEvent;
+import run.persistence.MessageDaoImpl;
+import run.persistence.OutboxSubscriber;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Message statistics for admins, kept up to date from outbox events so that
+ * reading them never touches the <code>messages</code> table.
+ *
+ * Per day it keeps the number of messages sent and read and a HyperLogLog
+ * of the users who sent, read or deleted anything (daily active users). Top
+ * senders are found with a count-min sketch plus a small set of candidates
+ * whose estimates are highest. Everything except the unread backlog is kept
+ * in memory only, so it covers the time since the application started; the
+ * backlog is counted from the database by a background job once a day and
+ * kept up to date from events in between. Recently seen events are
+ * remembered so that an event delivered twice is only counted once.
+ */
+@Slf4j
+@Component
+public class MessageAnalytics implements OutboxSubscriber {
+    static final int DAYS_KEPT = 90;
+    static final int TOP_SENDER_CANDIDATES = 100;
+    static final long BACKLOG_RELOAD_MS = 24 * 60 * 60 * 1000L;
+    static final int EVENTS_REMEMBERED = 10_000;
+
+    private final LocalDateTime startedAt = LocalDateTime.now();
+    private final NavigableMap<LocalDate, DayStats> days = new TreeMap<>();
+    private final CountMinSketch senders = new CountMinSketch(4, 4096);
+    private final Map<String, Long> topSenderCandidates = new HashMap<>();
+    private final Map<OutboxEvent, Boolean> recentEvents = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<OutboxEvent, Boolean> eldest) {
+            return size() > EVENTS_REMEMBERED;
+        }
+    };
+    private Long unreadBacklog;
+
+    @Override
+    public synchronized void onEvent(OutboxEvent event) {
+        if (recentEvents.put(event, Boolean.TRUE) != null) {
+            return;
+        }
+        DayStats day = days.computeIfAbsent(event.getCreatedAt().toLocalDate(), d -> new DayStats());
+        while (days.size() > DAYS_KEPT) {
+            days.pollFirstEntry();
+        }
+
+        switch (event.getEventType()) {
+            case MESSAGE_SENT -> {
+                day.sent++;
+                day.activeUsers.add(event.getSender());
+                recordSender(event.getSender());
+                adjustBacklog(1);
+            }
+            case MESSAGE_READ -> {
+                // Never recorded for a message the recipient has deleted, which already left the backlog
+                day.read++;
+                day.activeUsers.add(event.getRecipient());
+                adjustBacklog(-1);
+            }
+            case DELETED_FOR_SENDER -> day.activeUsers.add(event.getSender());
+            case DELETED_FOR_RECIPIENT -> {
+                day.activeUsers.add(event.getRecipient());
+                if (!event.isReadStatus()) {
+                    adjustBacklog(-1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return 10_000;
+    }
+
+    private void recordSender(String sender) {
+        long estimate = senders.add(sender);
+        if (topSenderCandidates.containsKey(sender) || topSenderCandidates.size() < TOP_SENDER_CANDIDATES) {
+            topSenderCandidates.put(sender, estimate);
+            return;
+        }
+        Map.Entry<String, Long> lowest = null;
+        for (Map.Entry<String, Long> candidate : topSenderCandidates.entrySet()) {
+            if (lowest == null || candidate.getValue() < lowest.getValue()) {
+                lowest = candidate;
+            }
+        }
+        if (estimate > lowest.getValue()) {
+            topSenderCandidates.remove(lowest.getKey());
+            topSenderCandidates.put(sender, estimate);
+        }
+    }
+
+    private void adjustBacklog(long change) {
+        if (unreadBacklog != null) {
+            unreadBacklog = Math.max(0, unreadBacklog + change);
+        }
+    }
+
+    /**
+     * Get the current statistics.
+     *
+     * @param dayCount How many of the most recent days to include
+     * @param topCount How many top senders to include
+     *
+     * @return The statistics, ready to be written out as JSON
+     */
+    public Map<String, Object> getSnapshot(int dayCount, int topCount) {
+        synchronized (this) {
+            List<Map<String, Object>> perDay = new ArrayList<>();
+            for (Map.Entry<LocalDate, DayStats> day : days.descendingMap().entrySet()) {
+                if (perDay.size() == dayCount) {
+                    break;
+                }
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("date", day.getKey());
+                stats.put("messagesSent", day.getValue().sent);
+                stats.put("messagesRead", day.getValue().read);
+                stats.put("activeUsers", day.getValue().activeUsers.estimate());
+                perDay.add(stats);
+            }
+
+            List<Map<String, Object>> topSenders = new ArrayList<>();
+            topSenderCandidates.keySet().stream()
+                    .map(sender -> Map.entry(sender, senders.estimate(sender)))
+                    .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                    .limit(topCount)
+                    .forEach(e -> topSenders.add(Map.of("username", e.getKey(), "messages", e.getValue())));
+
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("since", startedAt);
+            snapshot.put("messagesSentSinceStart", senders.getTotal());
+            // Null until the first count has finished
+            snapshot.put("unreadBacklog", unreadBacklog);
+            snapshot.put("days", perDay);
+            snapshot.put("topSenders", topSenders);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Count the unread backlog from the database. Runs on the scheduler
+     * thread, so only one count is ever in progress and no request waits for
+     * it. Events that arrive while it runs may be counted twice or not at
+     * all, which the next count corrects.
+     */
+    @Scheduled(fixedDelay = BACKLOG_RELOAD_MS)
+    public void reloadUnreadBacklog() {
+        long counted;
+        try {
+            // Counted outside the lock so events keep flowing during the query
+            counted = new MessageDaoImpl("database.properties").countAllUnreadMessages();
+        } catch (RuntimeException e) {
+            log.warn("Could not count the unread message backlog, keeping the previous value", e);
+            return;
+        }
+        synchronized (this) {
+            unreadBacklog = counted;
+        }
+    }
+
+    private static final class DayStats {
+        private long sent;
+        private long read;
+        private final HyperLogLog activeUsers = new HyperLogLog();
+    }
+}
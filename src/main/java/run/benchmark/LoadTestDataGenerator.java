@@ -0,0 +1,240 @@
+package run.benchmark;
+
+import run.persistence.SnowflakeMessageIdGenerator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills a database with a reproducible synthetic data set for load testing:
+ * users, a friendship graph and messages between friends.
+ *
+ * The friendship graph is built by preferential attachment (each new user
+ * befriends existing users with probability proportional to how many friends
+ * they already have), which gives the power-law degree distribution of a real
+ * social network: most users have a handful of friends and a few have
+ * thousands. Senders are picked the same way, so the busiest mailboxes belong
+ * to the best-connected users. The same arguments always produce the same
+ * users, friendships and message contents, and {@link LoadTestDriver}
+ * rebuilds the same graph so it only sends messages between friends.
+ *
+ * By default the data goes into an embedded H2 database in MySQL mode, which
+ * the application can use by pointing <code>database.properties</code> at the
+ * same URL. Every user's password is {@link #PASSWORD}.
+ *
+ * Usage: LoadTestDataGenerator [jdbcUrl] [users] [friendsPerUser] [messages] [seed]
+ */
+public class LoadTestDataGenerator {
+    static final String DEFAULT_URL = "jdbc:h2:./target/loadtest;MODE=MySQL;AUTO_SERVER=TRUE";
+    static final String PASSWORD = "password";
+    static final String[] WORDS = {"meeting", "lunch", "project", "deadline", "weekend", "invoice", "holiday",
+            "report", "party", "update", "question", "photos", "tickets", "review", "birthday", "schedule"};
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int MESSAGE_HISTORY_DAYS = 90;
+
+    /**
+     * Get the username of a generated user.
+     *
+     * @param index From 0 to the number of users - 1
+     *
+     * @return The username, which fits the 10 character username columns
+     */
+    static String username(int index) {
+        return String.format("lt%07d", index);
+    }
+
+    /**
+     * Build the friendship graph by preferential attachment. Only depends on
+     * its arguments, so the generator and the driver get the same graph.
+     *
+     * @param users          The number of users
+     * @param friendsPerUser The number of friendships each new user starts
+     *                       with (the average number of friends is twice this)
+     * @param seed           The random seed
+     *
+     * @return Each user's friends, by user index
+     */
+    static List<List<Integer>> friendGraph(int users, int friendsPerUser, long seed) {
+        Random random = new Random(seed);
+        List<List<Integer>> friends = new ArrayList<>(users);
+        // Every friendship adds both users here, so a uniform pick is a pick weighted by number of friends
+        List<Integer> endpoints = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            friends.add(new ArrayList<>());
+            int wanted = Math.min(friendsPerUser, user);
+            int added = 0;
+            while (added < wanted) {
+                int friend = endpoints.isEmpty() || random.nextInt(10) == 0 ? random.nextInt(user)
+                        : endpoints.get(random.nextInt(endpoints.size()));
+                if (!friends.get(user).contains(friend)) {
+                    friends.get(user).add(friend);
+                    friends.get(friend).add(user);
+                    added++;
+                }
+            }
+            for (int friend : friends.get(user)) {
+                endpoints.add(user);
+                endpoints.add(friend);
+            }
+        }
+        return friends;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        String url = args.length > 0 ? args[0] : DEFAULT_URL;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int friendsPerUser = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 200_000;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+
+        long start = System.currentTimeMillis();
+        List<List<Integer>> graph = friendGraph(users, friendsPerUser, seed);
+        try (Connection con = DriverManager.getConnection(url, "sa", "")) {
+            createTables(con);
+            con.setAutoCommit(false);
+            insertUsers(con, users);
+            long friendships = insertFriendships(con, graph);
+            insertMessages(con, graph, messages, new Random(seed + 1));
+            con.commit();
+
+            int maxFriends = graph.stream().mapToInt(List::size).max().orElse(0);
+            System.out.println("Generated " + users + " users, " + friendships + " friendships (most friends: "
+                    + maxFriends + ") and " + messages + " messages in " + (System.currentTimeMillis() - start)
+                    + " ms");
+            System.out.println("Database: " + url);
+        }
+    }
+
+    private static void createTables(Connection con) throws SQLException {
+        try (Statement st = con.createStatement()) {
+            st.execute("create table if not exists users (username varchar(20) not null, "
+                    + "password varchar(10) not null, firstName varchar(20), lastName varchar(30), "
+                    + "isAdmin boolean not null default FALSE, PRIMARY KEY (username))");
+            st.execute("create table if not exists friends (friend1 varchar(10) not null, "
+                    + "friend2 varchar(10) not null, PRIMARY KEY (friend1, friend2))");
+            for (String table : new String[]{"messages", "messages_archive"}) {
+                st.execute("create table if not exists " + table + " (messageID bigint not null, "
+                        + "sender varchar(10) not null, recipient varchar(10) not null, "
+                        + "subject varchar(100) not null, "
+                        + (table.equals("messages") ? "body varchar(500)" : "body blob") + " not null, "
+                        + "readStatus boolean not null default FALSE, "
+                        + "deletedForSender boolean not null default FALSE, "
+                        + "deletedForRecipient boolean not null default FALSE, "
+                        + "dateSent timestamp not null, PRIMARY KEY(messageID))");
+                st.execute("create index if not exists " + table + "_recipient_idx on " + table + "(recipient)");
+                st.execute("create index if not exists " + table + "_sender_idx on " + table + "(sender)");
+            }
+            st.execute("create index if not exists messages_deleted_idx on messages(deletedForSender, "
+                    + "deletedForRecipient)");
+            st.execute("create table if not exists message_outbox (eventID bigint not null AUTO_INCREMENT, "
+                    + "eventType varchar(30) not null, messageID bigint not null, sender varchar(10) not null, "
+                    + "recipient varchar(10) not null, readStatus boolean not null default FALSE, "
+                    + "createdAt timestamp not null, "
+                    + "attempts int not null default 0, nextAttemptAt timestamp not null, claimedBy varchar(36), "
+                    + "claimedUntil timestamp null, PRIMARY KEY (eventID))");
+            st.execute("create index if not exists message_outbox_due_idx on message_outbox(nextAttemptAt)");
+            st.execute("create index if not exists message_outbox_recipient_idx on message_outbox(recipient, "
+                    + "eventID)");
+        }
+    }
+
+    private static void insertUsers(Connection con, int users) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement(
+                "INSERT INTO users(username, password, firstName, lastName, isAdmin) VALUES (?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < users; i++) {
+                ps.setString(1, username(i));
+                ps.setString(2, PASSWORD);
+                ps.setString(3, "Load");
+                ps.setString(4, "Tester " + i);
+                ps.setBoolean(5, i == 0);
+                ps.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static long insertFriendships(Connection con, List<List<Integer>> graph) throws SQLException {
+        long friendships = 0;
+        try (PreparedStatement ps = con.prepareStatement("INSERT INTO friends(friend1, friend2) VALUES (?, ?)")) {
+            for (int user = 0; user < graph.size(); user++) {
+                for (int friend : graph.get(user)) {
+                    // Each friendship is stored once, in alphabetical order
+                    if (user < friend) {
+                        ps.setString(1, username(user));
+                        ps.setString(2, username(friend));
+                        ps.addBatch();
+                        if (++friendships % BATCH_SIZE == 0) {
+                            ps.executeBatch();
+                        }
+                    }
+                }
+            }
+            ps.executeBatch();
+        }
+        return friendships;
+    }
+
+    private static void insertMessages(Connection con, List<List<Integer>> graph, int messages, Random random)
+            throws SQLException {
+        List<Integer> endpoints = new ArrayList<>();
+        for (int user = 0; user < graph.size(); user++) {
+            for (int i = 0; i < graph.get(user).size(); i++) {
+                endpoints.add(user);
+            }
+        }
+        if (endpoints.isEmpty()) {
+            return;
+        }
+
+        // Spread messages evenly over the history, oldest first, with IDs that sort the same way
+        LocalDateTime first = LocalDateTime.now().minusDays(MESSAGE_HISTORY_DAYS);
+        long stepMillis = MESSAGE_HISTORY_DAYS * 86_400_000L / Math.max(1, messages);
+        long lastId = 0;
+        try (PreparedStatement ps = con.prepareStatement("INSERT INTO messages(messageID, sender, recipient, "
+                + "subject, body, readStatus, dateSent) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < messages; i++) {
+                int sender = endpoints.get(random.nextInt(endpoints.size()));
+                List<Integer> friends = graph.get(sender);
+                int recipient = friends.get(random.nextInt(friends.size()));
+                LocalDateTime sent = first.plusNanos((i * stepMillis + random.nextInt((int) Math.max(1, stepMillis)))
+                        * 1_000_000L);
+                lastId = Math.max(lastId + 1, SnowflakeMessageIdGenerator.firstIdAt(sent));
+
+                ps.setLong(1, lastId);
+                ps.setString(2, username(sender));
+                ps.setString(3, username(recipient));
+                ps.setString(4, "About the " + WORDS[random.nextInt(WORDS.length)]);
+                ps.setString(5, randomBody(random));
+                // Older messages are more likely to have been read
+                ps.setBoolean(6, random.nextInt(messages) >= i / 2);
+                ps.setTimestamp(7, Timestamp.valueOf(sent));
+                ps.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static String randomBody(Random random) {
+        StringBuilder body = new StringBuilder();
+        int words = 5 + random.nextInt(40);
+        for (int i = 0; i < words; i++) {
+            body.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return body.toString();
+    }
+}
@@ -0,0 +1,338 @@
+package run.benchmark;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a running instance of the application with a fixed number of
+ * concurrent virtual users and reports throughput and latency percentiles per
+ * operation, so a change can be compared against a baseline run.
+ *
+ * Each virtual user is one of the users made by
+ * {@link LoadTestDataGenerator} (run it first with the same user count,
+ * friends per user and seed) with its own HTTP client and cookies. It logs in,
+ * then loops over a fixed mix of operations: viewing the message list,
+ * sending a message to a friend through the JSON API, searching its messages
+ * and logging in again. Operation choices come from a seeded random number
+ * generator per virtual user, so every run makes the same sequence of
+ * requests. Requests scheduled during the warm-up period are not recorded.
+ * A request only counts as successful with a 2xx status (a redirect to the
+ * login page is an error), and a login only if the session can then fetch
+ * the unread count, so a wrong password shows up as errors.
+ *
+ * Requests are sent at a fixed rate, shared evenly between the virtual
+ * users, and each latency is measured from when the request was due to be
+ * sent rather than when it actually went out. A closed loop that only sends
+ * once the previous response has arrived sends less while the server is
+ * slow, so the slow periods are under-sampled and the percentiles look far
+ * better than users would see (coordinated omission). Measuring from the
+ * schedule counts the time a request spent waiting behind a slow one. A rate
+ * of 0 runs the old closed loop with no think time, which finds the maximum
+ * throughput but whose latencies should not be trusted.
+ *
+ * If a results file is given, a line per operation is appended to it as CSV.
+ *
+ * Usage: LoadTestDriver [baseUrl] [users] [friendsPerUser] [seed] [concurrency] [durationSeconds]
+ * [warmupSeconds] [requestsPerSecond] [resultsFile]
+ */
+public class LoadTestDriver {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // Operation mix, as a share of all requests
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final int[] WEIGHTS = {50, 20, 25, 5};
+
+    private enum Operation {
+        VIEW_MESSAGES, SEND_MESSAGE, SEARCH, LOGIN
+    }
+
+    private final String baseUrl;
+    private final List<List<Integer>> graph;
+    private final long seed;
+
+    public LoadTestDriver(String baseUrl, List<List<Integer>> graph, long seed) {
+        this.baseUrl = baseUrl;
+        this.graph = graph;
+        this.seed = seed;
+    }
+
+    /**
+     * Run the virtual users until the time is up.
+     *
+     * @param concurrency       The number of virtual users
+     * @param warmupMillis      How long to run before recording
+     * @param measureMillis     How long to record for
+     * @param requestsPerSecond The total rate to send requests at, or 0 to
+     *                          send each as soon as the last one finishes
+     *
+     * @return The recorded latencies of every virtual user, merged
+     */
+    public Results run(int concurrency, long warmupMillis, long measureMillis, double requestsPerSecond)
+            throws Exception {
+        long startAt = System.nanoTime();
+        long recordFrom = startAt + warmupMillis * 1_000_000;
+        long stopAt = recordFrom + measureMillis * 1_000_000;
+        // Each virtual user sends one request per interval
+        long intervalNanos = requestsPerSecond > 0 ? (long) (concurrency * 1e9 / requestsPerSecond) : 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            Future<?>[] users = new Future<?>[concurrency];
+            Results[] results = new Results[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                int virtualUser = i;
+                results[i] = new Results();
+                // Stagger the virtual users' schedules across one interval
+                long firstDue = startAt + intervalNanos * i / concurrency;
+                users[i] = pool.submit(() -> runVirtualUser(virtualUser, firstDue, intervalNanos, recordFrom, stopAt,
+                        results[virtualUser]));
+            }
+            Results merged = new Results();
+            for (int i = 0; i < concurrency; i++) {
+                users[i].get();
+                merged.addAll(results[i]);
+            }
+            return merged;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void runVirtualUser(int virtualUser, long firstDue, long intervalNanos, long recordFrom, long stopAt,
+                                Results results) {
+        Random random = new Random(seed * 31 + virtualUser);
+        // Pick a generated user to act as, skipping any without friends
+        int user = random.nextInt(graph.size());
+        for (int tries = 0; graph.get(user).isEmpty() && tries < graph.size(); tries++) {
+            user = (user + 1) % graph.size();
+        }
+        String username = LoadTestDataGenerator.username(user);
+        HttpClient client = HttpClient.newBuilder()
+                .cookieHandler(new CookieManager())
+                .connectTimeout(REQUEST_TIMEOUT)
+                .build();
+
+        timed(Operation.LOGIN, results, System.nanoTime(), recordFrom, () -> logIn(client, username));
+        long due = Math.max(firstDue, System.nanoTime());
+        while (due < stopAt) {
+            if (intervalNanos > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+            }
+            Operation operation = pick(random);
+            HttpRequest request = switch (operation) {
+                case VIEW_MESSAGES -> get("/viewMessages");
+                case SEND_MESSAGE -> {
+                    List<Integer> friends = graph.get(user);
+                    String recipient = LoadTestDataGenerator.username(friends.get(random.nextInt(friends.size())));
+                    String word = LoadTestDataGenerator.WORDS[random.nextInt(LoadTestDataGenerator.WORDS.length)];
+                    yield HttpRequest.newBuilder(URI.create(baseUrl + "/api/messages"))
+                            .timeout(REQUEST_TIMEOUT)
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString("{\"recipient\":\"" + recipient
+                                    + "\",\"subject\":\"Load test " + word + "\",\"body\":\"Sent by the load test "
+                                    + "about the " + word + "\"}"))
+                            .build();
+                }
+                case SEARCH -> get("/api/messages?q=" + encode(
+                        LoadTestDataGenerator.WORDS[random.nextInt(LoadTestDataGenerator.WORDS.length)]));
+                case LOGIN -> null;
+            };
+            timed(operation, results, due, recordFrom,
+                    () -> request == null ? logIn(client, username) : send(client, request));
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            due += intervalNanos;
+        }
+    }
+
+    private static Operation pick(Random random) {
+        int n = random.nextInt(Arrays.stream(WEIGHTS).sum());
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            n -= WEIGHTS[i];
+            if (n < 0) {
+                return OPERATIONS[i];
+            }
+        }
+        return OPERATIONS[0];
+    }
+
+    // Latency is measured from when the request was due, which is never later than when it was sent
+    private static void timed(Operation operation, Results results, long due, long recordFrom, Request request) {
+        boolean ok;
+        try {
+            ok = request.send();
+        } catch (IOException | UncheckedIOException e) {
+            ok = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (due >= recordFrom) {
+            results.record(operation, System.nanoTime() - due, ok);
+        }
+    }
+
+    private static boolean send(HttpClient client, HttpRequest request) throws IOException, InterruptedException {
+        // Read the whole body so the timing covers the full response, not just the headers
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        return response.statusCode() / 100 == 2;
+    }
+
+    // A failed login still answers 200 with the login failed page, so check the session really is logged in
+    private boolean logIn(HttpClient client, String username) throws IOException, InterruptedException {
+        return send(client, login(username)) && send(client, get("/api/messages/unread-count"));
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(REQUEST_TIMEOUT).GET().build();
+    }
+
+    private HttpRequest login(String username) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/login"))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + encode(username) + "&password="
+                        + encode(LoadTestDataGenerator.PASSWORD)))
+                .build();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        boolean send() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Latencies recorded by one virtual user, or merged from several.
+     */
+    public static class Results {
+        private final long[][] latencies = new long[OPERATIONS.length][1024];
+        private final int[] counts = new int[OPERATIONS.length];
+        private final int[] errors = new int[OPERATIONS.length];
+
+        private void record(Operation operation, long nanos, boolean ok) {
+            int i = operation.ordinal();
+            if (counts[i] == latencies[i].length) {
+                latencies[i] = Arrays.copyOf(latencies[i], counts[i] * 2);
+            }
+            latencies[i][counts[i]++] = nanos;
+            if (!ok) {
+                errors[i]++;
+            }
+        }
+
+        private void addAll(Results other) {
+            for (Operation operation : OPERATIONS) {
+                int i = operation.ordinal();
+                for (int j = 0; j < other.counts[i]; j++) {
+                    record(operation, other.latencies[i][j], true);
+                }
+                errors[i] += other.errors[i];
+            }
+        }
+
+        /**
+         * Print a table of request count, errors, throughput and latency
+         * percentiles for each operation.
+         *
+         * @param measureMillis How long the results were recorded for
+         * @param csv           If not null, also receives one CSV line per
+         *                      operation
+         */
+        public void report(long measureMillis, PrintWriter csv) {
+            String runAt = LocalDateTime.now().toString();
+            System.out.printf("%-14s %9s %7s %10s %10s %10s %10s %10s%n", "operation", "requests", "errors",
+                    "req/s", "p50 (ms)", "p99 (ms)", "p999 (ms)", "max (ms)");
+            for (Operation operation : OPERATIONS) {
+                int i = operation.ordinal();
+                long[] sorted = Arrays.copyOf(latencies[i], counts[i]);
+                Arrays.sort(sorted);
+                double throughput = counts[i] * 1000.0 / measureMillis;
+                double p50 = percentile(sorted, 0.50);
+                double p99 = percentile(sorted, 0.99);
+                double p999 = percentile(sorted, 0.999);
+                double max = sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1_000_000.0;
+                System.out.printf("%-14s %9d %7d %10.1f %10.2f %10.2f %10.2f %10.2f%n", operation, counts[i],
+                        errors[i], throughput, p50, p99, p999, max);
+                if (csv != null) {
+                    csv.printf("%s,%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f%n", runAt, operation, counts[i], errors[i],
+                            throughput, p50, p99, p999, max);
+                }
+            }
+            int total = Arrays.stream(counts).sum();
+            System.out.printf("%-14s %9d %7d %10.1f%n", "TOTAL", total, Arrays.stream(errors).sum(),
+                    total * 1000.0 / measureMillis);
+        }
+
+        // Nearest-rank percentile, in milliseconds
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1_000_000.0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int friendsPerUser = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+        long durationMillis = (args.length > 5 ? Long.parseLong(args[5]) : 60) * 1000;
+        long warmupMillis = (args.length > 6 ? Long.parseLong(args[6]) : 10) * 1000;
+        double requestsPerSecond = args.length > 7 ? Double.parseDouble(args[7]) : 200;
+        Path resultsFile = args.length > 8 ? Path.of(args[8]) : null;
+
+        System.out.println("Driving " + baseUrl + " with " + concurrency + " virtual users "
+                + (requestsPerSecond > 0 ? "at " + requestsPerSecond + " req/s " : "in a closed loop ") + "for "
+                + durationMillis / 1000 + " s (after " + warmupMillis / 1000 + " s warm-up)");
+        LoadTestDriver driver = new LoadTestDriver(baseUrl,
+                LoadTestDataGenerator.friendGraph(users, friendsPerUser, seed), seed);
+        Results results = driver.run(concurrency, warmupMillis, durationMillis, requestsPerSecond);
+
+        if (resultsFile == null) {
+            results.report(durationMillis, null);
+            return;
+        }
+        boolean newFile = !Files.exists(resultsFile);
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(resultsFile, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND))) {
+            if (newFile) {
+                csv.println("runAt,operation,requests,errors,requestsPerSecond,p50Ms,p99Ms,p999Ms,maxMs");
+            }
+            results.report(durationMillis, csv);
+        }
+        System.out.println("Results appended to " + resultsFile);
+    }
+}
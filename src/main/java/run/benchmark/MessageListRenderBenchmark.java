@@ -0,0 +1,138 @@
+package run.benchmark;
+
+import org.thymeleaf.context.Context;
+import org.thymeleaf.context.IExpressionContext;
+import org.thymeleaf.linkbuilder.StandardLinkBuilder;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import run.model.Message;
+
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures how long the <code>messages :: message-list</code> fragment takes
+ * to render for lists of different sizes, using the same cached template
+ * engine setup as production.
+ *
+ * Two times are reported for each size: the time until the first 8 KB of
+ * output has been written (when Tomcat's default response buffer would first
+ * be flushed to the client) and the time to render the whole list.
+ *
+ * Usage: MessageListRenderBenchmark [listSize ...]
+ */
+public class MessageListRenderBenchmark {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 50;
+    private static final int FLUSH_THRESHOLD = 8 * 1024;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0 ? new int[]{10, 100, 1_000, 10_000}
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        SpringTemplateEngine engine = createEngine();
+
+        System.out.printf("%10s %16s %16s %12s%n", "messages", "first 8KB (ms)", "total (ms)", "bytes");
+        for (int size : sizes) {
+            Context context = new Context();
+            context.setVariable("messages", createMessages(size));
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                render(engine, context);
+            }
+
+            long firstFlushTotal = 0;
+            long renderTotal = 0;
+            long bytes = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                TimingWriter writer = render(engine, context);
+                firstFlushTotal += writer.firstFlushNanos;
+                renderTotal += writer.totalNanos;
+                bytes = writer.chars;
+            }
+            System.out.printf("%10d %16.3f %16.3f %12d%n", size,
+                    firstFlushTotal / (MEASURED_ITERATIONS * 1_000_000.0),
+                    renderTotal / (MEASURED_ITERATIONS * 1_000_000.0), bytes);
+        }
+    }
+
+    private static SpringTemplateEngine createEngine() {
+        ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+        resolver.setPrefix("templates/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        resolver.setCacheable(true);
+
+        SpringTemplateEngine engine = new SpringTemplateEngine();
+        engine.setTemplateResolver(resolver);
+        // There is no servlet request here, so treat context-relative links as relative to "/"
+        engine.setLinkBuilder(new StandardLinkBuilder() {
+            @Override
+            protected String computeContextPath(IExpressionContext context, String base, Map<String, Object> parameters) {
+                return "";
+            }
+        });
+        return engine;
+    }
+
+    private static TimingWriter render(SpringTemplateEngine engine, Context context) {
+        TimingWriter writer = new TimingWriter();
+        engine.process("messages", Set.of("message-list"), context, writer);
+        writer.finish();
+        return writer;
+    }
+
+    private static List<Message> createMessages(int count) {
+        List<Message> messages = new ArrayList<>(count);
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < count; i++) {
+            messages.add(Message.builder()
+                    .messageID(i + 1)
+                    .sender("user" + (i % 50))
+                    .recipient("Charles")
+                    .subject("Benchmark message number " + i)
+                    .timestamp(now.minusMinutes(i))
+                    .build());
+        }
+        return messages;
+    }
+
+    // Discards output, recording when the first buffer-full was written and when rendering finished
+    private static class TimingWriter extends Writer {
+        private final long start = System.nanoTime();
+        private long firstFlushNanos = -1;
+        private long totalNanos;
+        private long chars;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chars += len;
+            if (firstFlushNanos < 0 && chars >= FLUSH_THRESHOLD) {
+                firstFlushNanos = System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void finish() {
+            totalNanos = System.nanoTime() - start;
+            if (firstFlushNanos < 0) {
+                // Output never filled a buffer, so the first byte goes out when rendering ends
+                firstFlushNanos = totalNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package run.controllers;
+
+import jakarta.servlet.http.HttpSession;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import run.analytics.MessageAnalytics;
+import run.model.User;
+import run.persistence.UsernameFilter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JSON API for admin users only. Statistics come from
+ * {@link MessageAnalytics} and {@link UsernameFilter}, which are kept up to
+ * date in memory, so these requests never scan the <code>messages</code>
+ * table.
+ */
+@RestController
+@RequestMapping("/api/admin")
+public class AdminApiController {
+    private static final int MAX_DAYS = 90;
+    private static final int MAX_TOP_SENDERS = 100;
+
+    private final MessageAnalytics analytics;
+
+    public AdminApiController(MessageAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    @GetMapping(path = "/analytics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> getAnalytics(
+            @RequestParam(name="days", defaultValue = "30") int days,
+            @RequestParam(name="top", defaultValue = "10") int top,
+            HttpSession session){
+        ResponseEntity<Map<String, Object>> denied = checkAdmin(session);
+        if(denied != null){
+            return denied;
+        }
+
+        return ResponseEntity.ok(analytics.getSnapshot(Math.max(1, Math.min(days, MAX_DAYS)),
+                Math.max(1, Math.min(top, MAX_TOP_SENDERS))));
+    }
+
+    /**
+     * How well the username Bloom filter is doing: how many lookups it has
+     * answered, how many it ruled out without a query, and the observed
+     * false-positive rate (absent usernames it still sent to the database).
+     */
+    @GetMapping(path = "/username-filter", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> getUsernameFilterStats(HttpSession session){
+        ResponseEntity<Map<String, Object>> denied = checkAdmin(session);
+        if(denied != null){
+            return denied;
+        }
+
+        UsernameFilter filter = UsernameFilter.getInstance();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("loaded", filter.isLoaded());
+        stats.put("lookups", filter.getLookups());
+        stats.put("definiteMisses", filter.getDefiniteMisses());
+        stats.put("falsePositives", filter.getFalsePositives());
+        stats.put("falsePositiveRate", filter.getFalsePositiveRate());
+        return ResponseEntity.ok(stats);
+    }
+
+    // Null if the session belongs to an admin, otherwise the response to send instead
+    private static ResponseEntity<Map<String, Object>> checkAdmin(HttpSession session){
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Not logged in"));
+        }
+        if(!u.isAdmin()){
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Admins only"));
+        }
+        return null;
+    }
+}
@@ -1,9 +1,16 @@
 package run.controllers;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import run.persistence.DaoException;
+import run.persistence.DataIntegrityException;
+import run.persistence.DatabaseUnavailableException;
 
+@Slf4j
 @ControllerAdvice
 public class AppExceptionHandler {
     @ExceptionHandler(value = NullPointerException.class)
@@ -12,6 +19,32 @@ public class AppExceptionHandler {
         return "error";
     }
 
+    // The DAO has already logged the details, so only a short message is shown
+    @ExceptionHandler(value = DatabaseUnavailableException.class)
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public String databaseUnavailableHandler(Model model, DatabaseUnavailableException ex) {
+        log.debug("Request failed, database unavailable: {}", ex.getMessage());
+        model.addAttribute("errType", ex.getClass());
+        model.addAttribute("errMsg", "The service is temporarily unavailable, please try again in a moment.");
+        return "error";
+    }
+
+    @ExceptionHandler(value = DataIntegrityException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public String dataIntegrityHandler(Model model, DataIntegrityException ex) {
+        model.addAttribute("errType", ex.getClass());
+        model.addAttribute("errMsg", "That change conflicts with existing data.");
+        return "error";
+    }
+
+    @ExceptionHandler(value = DaoException.class)
+    @ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
+    public String daoExceptionHandler(Model model, DaoException ex) {
+        model.addAttribute("errType", ex.getClass());
+        model.addAttribute("errMsg", "Something went wrong while reading or saving your data.");
+        return "error";
+    }
+
     @ExceptionHandler(value = Exception.class)
     public String allOtherExceptionHandler(Model model, Exception ex) {
         model.addAttribute("errType", ex.getClass());
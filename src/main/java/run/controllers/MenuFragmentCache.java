@@ -0,0 +1,96 @@
+package run.controllers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import jakarta.servlet.http.HttpSession;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.thymeleaf.context.WebContext;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.web.servlet.JakartaServletWebApplication;
+import run.model.User;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Renders the <code>fragments/menu :: menu-bar</code> fragment once per role
+ * and keeps the HTML. Every page includes the menu, and it only varies by
+ * whether (and as what) the user is logged in, so there is no need to
+ * process it on every request. The template shows different links for
+ * guests, users and admins based on the <code>menuRole</code> variable.
+ *
+ * The menu is rendered without URL rewriting: otherwise the first visitor's
+ * <code>;jsessionid=...</code> could end up in links served to everyone.
+ *
+ * Templates include it with
+ * <code>&lt;th:block th:utext="${@menuFragmentCache.menuBar()}"&gt;&lt;/th:block&gt;</code>
+ */
+@Component("menuFragmentCache")
+public class MenuFragmentCache {
+    private final SpringTemplateEngine templateEngine;
+    private final ConcurrentMap<String, String> renderedMenus = new ConcurrentHashMap<>();
+
+    public MenuFragmentCache(SpringTemplateEngine templateEngine) {
+        this.templateEngine = templateEngine;
+    }
+
+    /**
+     * Get the menu bar HTML for the user making the current request.
+     *
+     * @return The rendered menu bar
+     */
+    public String menuBar() {
+        ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.currentRequestAttributes();
+        HttpServletRequest request = attributes.getRequest();
+        HttpServletResponse response = attributes.getResponse();
+
+        String role = roleOf(request.getSession(false));
+        // Links include the context path, so it has to be part of the key
+        String key = request.getContextPath() + "|" + role;
+        return renderedMenus.computeIfAbsent(key, k -> render(request, response, role));
+    }
+
+    /**
+     * Throw away every cached menu, e.g. after the menu template has changed.
+     */
+    public void clear() {
+        renderedMenus.clear();
+    }
+
+    private String render(HttpServletRequest request, HttpServletResponse response, String role) {
+        JakartaServletWebApplication application =
+                JakartaServletWebApplication.buildApplication(request.getServletContext());
+        WebContext context = new WebContext(application.buildExchange(request, new NoUrlRewritingResponse(response)));
+        context.setVariable("menuRole", role);
+        return templateEngine.process("fragments/menu", Set.of("menu-bar"), context);
+    }
+
+    // Leaves URLs as they are, so no session ID is added to the shared HTML
+    private static final class NoUrlRewritingResponse extends HttpServletResponseWrapper {
+        private NoUrlRewritingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public String encodeURL(String url) {
+            return url;
+        }
+
+        @Override
+        public String encodeRedirectURL(String url) {
+            return url;
+        }
+    }
+
+    private static String roleOf(HttpSession session) {
+        User u = session == null ? null : (User) session.getAttribute("loggedInUser");
+        if (u == null) {
+            return "guest";
+        }
+        return u.isAdmin() ? "admin" : "user";
+    }
+}
@@ -0,0 +1,212 @@
+package run.controllers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpSession;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import run.model.User;
+import run.persistence.DaoException;
+import run.persistence.DataIntegrityException;
+import run.persistence.DatabaseUnavailableException;
+import run.persistence.MessageDaoImpl;
+import run.persistence.UnreadCountSubscriber;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON API over the logged-in user's messages.
+ *
+ * GET requests take an optional <code>fields</code> parameter, a
+ * comma-separated list of the fields to return (any of messageID, sender,
+ * recipient, subject, body, readStatus, deletedForSender,
+ * deletedForRecipient, timestamp). Only those columns are
+ * selected from the database. Lists are written out row by row as they are
+ * read, and are gzipped by the server when large (see application.properties).
+ *
+ * A list's 200 status is sent before its rows are read, so if the database
+ * fails part way through, the array is ended with one last element,
+ * <code>{"error": "...", "incomplete": true}</code>, rather than being cut
+ * off. Clients must check the last element for <code>incomplete</code>
+ * before trusting the list.
+ *
+ * Message IDs are written as strings. They are 64-bit snowflake IDs, which
+ * JavaScript numbers can't hold exactly, so a browser reading them as numbers
+ * would round them to a different message's ID.
+ */
+@RestController
+@RequestMapping("/api/messages")
+public class MessageApiController {
+    private static final List<String> DEFAULT_LIST_FIELDS =
+            List.of("messageID", "sender", "subject", "readStatus", "timestamp");
+    private static final List<String> ALL_FIELDS =
+            List.of("messageID", "sender", "recipient", "subject", "body", "readStatus", "timestamp");
+
+    private final ObjectMapper objectMapper;
+    private final UnreadCountSubscriber unreadCounts;
+
+    public MessageApiController(ObjectMapper objectMapper, UnreadCountSubscriber unreadCounts) {
+        this.objectMapper = objectMapper;
+        this.unreadCounts = unreadCounts;
+    }
+
+    @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> listMessages(
+            @RequestParam(name="fields", required = false) String fields,
+            @RequestParam(name="q", required = false) String searchTerm,
+            HttpSession session){
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Not logged in"));
+        }
+        List<String> projection = parseFields(fields, DEFAULT_LIST_FIELDS);
+        if(projection == null){
+            return badFields(fields);
+        }
+
+        String username = u.getUsername();
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator json = objectMapper.createGenerator(out)) {
+                json.writeStartArray();
+                try {
+                    new MessageDaoImpl("database.properties").streamReceivedMessageFields(username, projection,
+                            searchTerm == null || searchTerm.isBlank() ? null : searchTerm, row -> {
+                                try {
+                                    json.writeObject(withStringId(row));
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+                } catch (DaoException e) {
+                    // Too late for an error status, so say so in the body and keep the JSON well formed
+                    json.writeStartObject();
+                    json.writeStringField("error", statusFor(e).getReasonPhrase());
+                    json.writeBooleanField("incomplete", true);
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @GetMapping(path = "/unread-count", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> unreadCount(HttpSession session){
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Not logged in"));
+        }
+        return ResponseEntity.ok(Map.of("unread", unreadCounts.getUnreadCount(u.getUsername())));
+    }
+
+    @GetMapping(path = "/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> getMessage(
+            @PathVariable("id") long messageID,
+            @RequestParam(name="fields", required = false) String fields,
+            HttpSession session){
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Not logged in"));
+        }
+        List<String> projection = parseFields(fields, ALL_FIELDS);
+        if(projection == null){
+            return badFields(fields);
+        }
+
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        Map<String, Object> row = messageDao.getMessageFieldsById(messageID, projection);
+        // Same rule as /viewMessage: only the sender or recipient, and not once they have deleted it. Anyone else
+        // can't tell whether the message exists
+        String username = u.getUsername();
+        boolean visible = row != null
+                && ((username.equals(row.get("sender")) && !Boolean.TRUE.equals(row.get("deletedForSender")))
+                || (username.equals(row.get("recipient")) && !Boolean.TRUE.equals(row.get("deletedForRecipient"))));
+        if(!visible){
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "No such message"));
+        }
+        row.keySet().retainAll(projection);
+
+        return ResponseEntity.ok(withStringId(row));
+    }
+
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> sendMessage(@RequestBody Map<String, String> request,
+                                                           HttpSession session){
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(Map.of("error", "Not logged in"));
+        }
+        String recipient = request.get("recipient");
+        String subject = request.get("subject");
+        String body = request.get("body");
+        if(recipient == null || recipient.isBlank() || subject == null || subject.isBlank() || body == null){
+            return ResponseEntity.badRequest().body(Map.of("error", "recipient, subject and body are required"));
+        }
+
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        long result = messageDao.sendMessage(u.getUsername(), recipient, subject, body);
+        if(result > 0){
+            return ResponseEntity.status(HttpStatus.CREATED).body(Map.of("messageID", String.valueOf(result)));
+        }else if(result == -1){
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "You are not friends with " + recipient));
+        }else if(result == -2){
+            return ResponseEntity.badRequest().body(Map.of("error", "No such user " + recipient));
+        }
+        return ResponseEntity.internalServerError().body(Map.of("error", "Message could not be sent"));
+    }
+
+    // JSON rather than the HTML error page from AppExceptionHandler
+    @ExceptionHandler(DaoException.class)
+    public ResponseEntity<Map<String, Object>> daoExceptionHandler(DaoException ex){
+        HttpStatus status = statusFor(ex);
+        return ResponseEntity.status(status).body(Map.of("error", status.getReasonPhrase()));
+    }
+
+    private static HttpStatus statusFor(DaoException ex){
+        return ex instanceof DatabaseUnavailableException ? HttpStatus.SERVICE_UNAVAILABLE
+                : ex instanceof DataIntegrityException ? HttpStatus.CONFLICT : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    private static Map<String, Object> withStringId(Map<String, Object> row){
+        row.computeIfPresent("messageID", (field, id) -> id.toString());
+        return row;
+    }
+
+    // Returns null if any requested field is unknown
+    private static List<String> parseFields(String fields, List<String> defaults){
+        if(fields == null || fields.isBlank()){
+            return defaults;
+        }
+        List<String> projection = new ArrayList<>();
+        for(String field : Arrays.asList(fields.split(","))){
+            field = field.trim();
+            if(!MessageDaoImpl.PROJECTABLE_FIELDS.containsKey(field)){
+                return null;
+            }
+            if(!projection.contains(field)){
+                projection.add(field);
+            }
+        }
+        return projection;
+    }
+
+    private static ResponseEntity<?> badFields(String fields){
+        return ResponseEntity.badRequest().body(Map.of("error", "Unknown field in: " + fields,
+                "allowed", MessageDaoImpl.PROJECTABLE_FIELDS.keySet()));
+    }
+}
@@ -1,14 +1,20 @@
 package run.controllers;
 
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.WebRequest;
 import run.model.Message;
-import run.persistence.MessageDao;
+import run.model.User;
+import run.persistence.MailboxVersions;
 import run.persistence.MessageDaoImpl;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 
 @Controller
@@ -17,14 +23,66 @@ public class MessageController {
 
 
     @GetMapping("/viewMessages")
-    public String processRequest(Model model) {
-        MessageDao messageDao = new MessageDaoImpl("database.properties");
-        List<Message> messages = messageDao.getReceivedMessagesForUser("Charles");
+    public String processRequest(Model model, WebRequest request, HttpServletResponse response,
+                                 HttpSession session) {
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return "redirect:/";
+        }
+        String username = u.getUsername();
+        // If the browser already has this version of the mailbox, answer 304 without querying or rendering.
+        // The mailbox version alone is the same for every user who hasn't had a change since startup, so the
+        // viewer goes into the tag too. No Last-Modified either, as that can't tell two viewers apart
+        String mailboxETag = MailboxVersions.getETag(username);
+        String eTag = "\"" + viewerTag(u) + "-" + mailboxETag.substring(1);
+        response.setHeader("Cache-Control", "private, no-cache");
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+
+        // The list only shows headers, so don't load every message body
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        List<Message> messages = messageDao.getReceivedMessageHeadersForUser(username);
         model.addAttribute("messages",messages);
 
         return "messages";
     }
 
+    @GetMapping("/viewMessage")
+    public String viewMessage(@RequestParam(name="messageID") long messageID, Model model,
+                              WebRequest request, HttpServletResponse response, HttpSession session) {
+        User u = (User) session.getAttribute("loggedInUser");
+        if(u == null){
+            return "redirect:/";
+        }
+        String username = u.getUsername();
+
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        Message m = messageDao.getMessageById(messageID);
+        // Only the sender or recipient may see a message, and not once they have deleted it.
+        // Anyone else gets the same answer as for a message that doesn't exist.
+        boolean visible = m != null
+                && ((username.equals(m.getSender()) && !m.isDeletedForSender())
+                || (username.equals(m.getRecipient()) && !m.isDeletedForRecipient()));
+        if(!visible){
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            model.addAttribute("errMsg", "No message found with ID " + messageID);
+            return "error";
+        }
+
+        // Only the flags of a message ever change, so they and the viewer identify what the page shows. Built
+        // from the stored row rather than anything held in memory, it survives restarts and other instances
+        String eTag = "\"" + messageID + "-" + (m.isReadStatus() ? 1 : 0) + (m.isDeletedForSender() ? 1 : 0)
+                + (m.isDeletedForRecipient() ? 1 : 0) + "-" + viewerTag(u) + "\"";
+        response.setHeader("Cache-Control", "private, no-cache");
+        if(request.checkNotModified(eTag)){
+            return null;
+        }
+        model.addAttribute("message", m);
+
+        return "message";
+    }
+
 //    @GetMapping("/greet")
 //    public int greet(@RequestParam(name="messageID", required=false, defaultValue="1") int messageID,
 //                        Model model) {
@@ -39,4 +97,12 @@ public class MessageController {
 //        return "greeting";
 //    }
 
-}
\ No newline at end of file
+
+    // Identifies who a page was rendered for: the username (encoded, so it can't end the quoted ETag early and
+    // two users never share a tag) and the role, which decides the menu
+    private static String viewerTag(User u){
+        String username = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(u.getUsername().getBytes(StandardCharsets.UTF_8));
+        return username + (u.isAdmin() ? ".a" : ".u");
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import run.model.User;
 import run.persistence.UserDao;
 import run.persistence.UserDaoImpl;
+import run.persistence.UsernameFilter;
 
 // Lombok annotation to add a logger to the class
 @Slf4j
@@ -25,11 +26,13 @@ public class UserController {
         // VALIDATION
         String view = "";
         UserDao userDao = new UserDaoImpl("database.properties");
-        User u = new User(username, password, first, last, true);
+        // Self-registered users are never admins; admins are only made directly in the database
+        User u = new User(username, password, first, last, false);
         boolean added = userDao.register(u);
         if(added){
             view = "registerSuccess";
             model.addAttribute("registeredUser", u);
+            UsernameFilter.getInstance().add(u.getUsername());
             log.info("User {} registered", u.getUsername());
         }else{
             view = "registerFailed";
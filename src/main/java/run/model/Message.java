@@ -18,7 +18,7 @@ import java.util.Date;
     Created based on:
         create table if not exists messages
         (
-            messageID int not null AUTO_INCREMENT,
+            messageID bigint not null,
             sender varchar(10) not null,
             recipient varchar(10) not null,
             subject varchar(100) not null,
@@ -31,6 +31,36 @@ import java.util.Date;
             FOREIGN KEY (sender) REFERENCEs users(username) on delete cascade,
             FOREIGN KEY (recipient) REFERENCES users(username) on delete cascade
         );
+
+    Messages older than messages.archive.age-days are moved to the archive
+    table, with their body compressed:
+        create table if not exists messages_archive
+        (
+            messageID bigint not null,
+            sender varchar(10) not null,
+            recipient varchar(10) not null,
+            subject varchar(100) not null,
+            body blob not null,
+            readStatus boolean not null default FALSE,
+            deletedForSender boolean not null default FALSE,
+            deletedForRecipient boolean not null default FALSE,
+            dateSent timestamp not null,
+            PRIMARY KEY(messageID),
+            INDEX (recipient),
+            INDEX (sender),
+            FOREIGN KEY (sender) REFERENCEs users(username) on delete cascade,
+            FOREIGN KEY (recipient) REFERENCES users(username) on delete cascade
+        );
+
+    The purge job finds rows deleted by both sides; this index keeps that
+    lookup from scanning the table:
+        create index messages_deleted_idx on messages(deletedForSender, deletedForRecipient);
+
+    messageID is assigned by SnowflakeMessageIdGenerator before the insert,
+    so IDs are unique across shards and sort in the order messages were sent.
+
+    List views load only the header columns, so body is null until the
+    Message is opened with getMessageById().
 */
 @Getter
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
@@ -41,7 +71,7 @@ public class Message implements Comparable<Message>{
     private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss EEE dd MMM yyyy");
 
     @EqualsAndHashCode.Include
-    private int messageID;
+    private long messageID;
     private String sender;
     private String recipient;
     private String subject;
@@ -69,9 +99,14 @@ public class Message implements Comparable<Message>{
         return "Message{" + "messageID=" + messageID + ", sender=" + sender + ", recipient=" + recipient + ", subject=" + subject + ", body=" + body + ", readStatus=" + readStatus + ", deletedForSender=" + deletedForSender + ", deletedForRecipient=" + deletedForRecipient + ", timestamp=" + timestamp.format(FORMATTER) + '}';
     }
 
+    // Newest first. Timestamps are only to the second, so ties are broken by ID, which is time-ordered.
     @Override
     public int compareTo(Message m) {
-        return timestamp.compareTo(m.timestamp) * -1;
+        int result = timestamp.compareTo(m.timestamp);
+        if (result == 0) {
+            result = Long.compare(messageID, m.messageID);
+        }
+        return result * -1;
     }
 }
 
@@ -0,0 +1,53 @@
+package run.model;
+
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * A change to a <code>Message</code>, recorded in the same transaction as the
+ * change itself and later handed to every
+ * {@link run.persistence.OutboxSubscriber}. Events are only recorded for
+ * real changes (marking a read message as read again records nothing), and
+ * carry the read status the <code>Message</code> had just before the change.
+ *
+ * Based on message_outbox table (one in each database holding messages):
+ *      create table if not exists message_outbox
+(
+eventID bigint not null AUTO_INCREMENT,
+eventType varchar(30) not null,
+messageID bigint not null,
+sender varchar(10) not null,
+recipient varchar(10) not null,
+readStatus boolean not null default FALSE,
+createdAt timestamp not null,
+attempts int not null default 0,
+nextAttemptAt timestamp not null,
+claimedBy varchar(36),
+claimedUntil timestamp null,
+PRIMARY KEY (eventID),
+INDEX (nextAttemptAt),
+INDEX (recipient, eventID)
+);
+ */
+@Getter
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@ToString
+@AllArgsConstructor
+public class OutboxEvent {
+    public enum Type {
+        MESSAGE_SENT, MESSAGE_READ, DELETED_FOR_SENDER, DELETED_FOR_RECIPIENT
+    }
+
+    // Only unique within one database; with shards, use it together with the message ID
+    @EqualsAndHashCode.Include
+    private long eventID;
+    private Type eventType;
+    @EqualsAndHashCode.Include
+    private long messageID;
+    private String sender;
+    private String recipient;
+    private boolean readStatus;
+    private LocalDateTime createdAt;
+    private int attempts;
+}
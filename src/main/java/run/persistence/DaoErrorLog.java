@@ -0,0 +1,94 @@
+package run.persistence;
+
+import org.slf4j.Logger;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs errors from the persistence package in one consistent, structured
+ * form and counts them per DAO method.
+ *
+ * Every error is counted, but only the first {@link #FULL_LOGS_PER_SECOND}
+ * errors per method per second are logged in full (with stack trace). After
+ * that only one in every {@link #SAMPLE_RATE} is logged, marked as sampled
+ * and carrying the number suppressed since the last one, so a database outage
+ * producing thousands of identical errors cannot flood the log. The log
+ * output itself goes through an asynchronous appender that drops rather than
+ * blocks when full (see <code>logback-spring.xml</code>).
+ */
+public final class DaoErrorLog {
+    static final int FULL_LOGS_PER_SECOND = 10;
+    static final int SAMPLE_RATE = 100;
+
+    private static final ConcurrentMap<String, MethodErrors> ERRORS = new ConcurrentHashMap<>();
+
+    private DaoErrorLog() {
+    }
+
+    /**
+     * Record and (subject to sampling) log an error in a DAO method.
+     *
+     * @param log    The logger of the DAO class
+     * @param method The name of the DAO method the error happened in
+     * @param e      The error
+     */
+    public static void error(Logger log, String method, Exception e) {
+        MethodErrors errors = ERRORS.computeIfAbsent(method, m -> new MethodErrors());
+        errors.total.increment();
+
+        long suppressed = errors.shouldLog(System.currentTimeMillis());
+        if (suppressed < 0) {
+            return;
+        }
+
+        String sqlState = e instanceof SQLException ? ((SQLException) e).getSQLState() : null;
+        Integer errorCode = e instanceof SQLException ? ((SQLException) e).getErrorCode() : null;
+        log.atError()
+                .setMessage("DAO operation failed")
+                .addKeyValue("method", method)
+                .addKeyValue("exception", e.getClass().getSimpleName())
+                .addKeyValue("sqlState", sqlState)
+                .addKeyValue("errorCode", errorCode)
+                .addKeyValue("totalErrors", errors.total.sum())
+                .addKeyValue("suppressedSinceLast", suppressed)
+                .setCause(e)
+                .log();
+    }
+
+    /**
+     * Get the number of errors recorded for each DAO method since startup.
+     *
+     * @return A map of method name to error count, sorted by method name
+     */
+    public static Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        ERRORS.forEach((method, errors) -> counts.put(method, errors.total.sum()));
+        return counts;
+    }
+
+    private static final class MethodErrors {
+        private final LongAdder total = new LongAdder();
+        // The current second in the high 32 bits and the errors counted in it in the low 32, so that starting
+        // a new window and counting in it is one atomic update
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        // Returns -1 if this error should not be logged, otherwise how many were suppressed before it
+        private long shouldLog(long now) {
+            long second = now / 1000;
+            long packed = window.updateAndGet(w -> (w >>> 32) == second ? w + 1 : (second << 32) | 1);
+            long n = packed & 0xffffffffL;
+            if (n <= FULL_LOGS_PER_SECOND || n % SAMPLE_RATE == 0) {
+                return suppressed.getAndSet(0);
+            }
+            suppressed.incrementAndGet();
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package run.persistence;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown when a DAO method cannot complete because of a database error.
+ * Outcomes that are not errors (no match found, users not friends, etc.)
+ * are still reported through the DAO methods' return values.
+ */
+public class DaoException extends RuntimeException {
+    public DaoException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Wrap an <code>SQLException</code> in the most specific
+     * <code>DaoException</code> for it.
+     *
+     * @param operation The DAO method that failed
+     * @param e         The error from the database
+     *
+     * @return A {@link DataIntegrityException} for constraint violations, a
+     *         {@link DatabaseUnavailableException} for connection failures,
+     *         otherwise a plain <code>DaoException</code>
+     */
+    public static DaoException translate(String operation, SQLException e) {
+        String sqlState = e.getSQLState() == null ? "" : e.getSQLState();
+        String message = operation + " failed: " + e.getMessage();
+        if (e instanceof SQLIntegrityConstraintViolationException || sqlState.startsWith("23")) {
+            return new DataIntegrityException(message, e);
+        }
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || sqlState.startsWith("08")) {
+            return new DatabaseUnavailableException(message, e);
+        }
+        return new DaoException(message, e);
+    }
+}
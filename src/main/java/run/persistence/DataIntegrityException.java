@@ -0,0 +1,11 @@
+package run.persistence;
+
+/**
+ * Thrown when a change would break a database constraint, e.g. a duplicate
+ * key or a reference to a user that does not exist.
+ */
+public class DataIntegrityException extends DaoException {
+    public DataIntegrityException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,123 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker around getting a connection to the primary database.
+ *
+ * While the database is healthy (closed circuit) connections are handed out
+ * as normal. After {@link #FAILURE_THRESHOLD} consecutive failures the
+ * circuit opens: every request then fails immediately with a
+ * {@link DatabaseUnavailableException} instead of each one waiting for its
+ * own connection timeout. While open, a background thread tries to connect
+ * every {@link #PROBE_INTERVAL_MS} ms and closes the circuit again as soon as
+ * one attempt succeeds, so no user request is ever used as the probe.
+ */
+@Slf4j
+public class DatabaseCircuitBreaker {
+    static final int FAILURE_THRESHOLD = 5;
+    static final long PROBE_INTERVAL_MS = 2000;
+
+    private static final ConcurrentMap<String, DatabaseCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "database-circuit-probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String name;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean open = new AtomicBoolean(false);
+
+    DatabaseCircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the circuit breaker for the database described in a properties
+     * file.
+     *
+     * @param propertiesFile The properties file the DAO was created with
+     *
+     * @return The circuit breaker for that database
+     */
+    public static DatabaseCircuitBreaker forProperties(String propertiesFile) {
+        String key = propertiesFile == null ? "" : propertiesFile;
+        return BREAKERS.computeIfAbsent(key, DatabaseCircuitBreaker::new);
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    /**
+     * Get a connection through the circuit breaker.
+     *
+     * @param connect Opens a connection; returning null or throwing counts as
+     *                a failure
+     * @param release Gives back a connection, used for connections opened
+     *                only to probe the database
+     *
+     * @return The connection
+     *
+     * @throws DatabaseUnavailableException If the circuit is open or the
+     *                                      connection could not be made
+     */
+    public Connection getConnection(Supplier<Connection> connect, Consumer<Connection> release) {
+        if (open.get()) {
+            throw new DatabaseUnavailableException("Database " + name + " is unavailable (circuit open)", null);
+        }
+
+        Connection con;
+        try {
+            con = connect.get();
+        } catch (RuntimeException e) {
+            recordFailure(connect, release);
+            throw new DatabaseUnavailableException("Unable to connect to database " + name, e);
+        }
+        if (con == null) {
+            recordFailure(connect, release);
+            throw new DatabaseUnavailableException("Unable to connect to database " + name, null);
+        }
+        consecutiveFailures.set(0);
+        return con;
+    }
+
+    private void recordFailure(Supplier<Connection> connect, Consumer<Connection> release) {
+        if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD && open.compareAndSet(false, true)) {
+            log.warn("Opening circuit for database {} after {} consecutive connection failures", name,
+                    FAILURE_THRESHOLD);
+            scheduleProbe(connect, release);
+        }
+    }
+
+    private void scheduleProbe(Supplier<Connection> connect, Consumer<Connection> release) {
+        PROBES.schedule(() -> {
+            Connection con = null;
+            try {
+                con = connect.get();
+            } catch (RuntimeException e) {
+                log.debug("Database {} still unavailable: {}", name, e.getMessage());
+            }
+            if (con != null) {
+                release.accept(con);
+                consecutiveFailures.set(0);
+                open.set(false);
+                log.info("Closing circuit for database {}, connections are succeeding again", name);
+            } else {
+                scheduleProbe(connect, release);
+            }
+        }, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,12 @@
+package run.persistence;
+
+/**
+ * Thrown when the database cannot be reached, including when the
+ * {@link DatabaseCircuitBreaker} is open and requests are being failed
+ * immediately instead of waiting for a connection timeout.
+ */
+public class DatabaseUnavailableException extends DaoException {
+    public DatabaseUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,70 @@
+package run.persistence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks a version number for every user's mailbox so that controllers can
+ * answer conditional GETs without querying the database.
+ *
+ * Every DAO method that changes what a user would see in their mailbox calls
+ * {@link #changed(String)} for that user. Versions only live in memory, so
+ * each one is combined with the time this class was loaded: restarting the
+ * application invalidates every ETag handed out before the restart.
+ */
+public final class MailboxVersions {
+    private static final long EPOCH = System.currentTimeMillis();
+
+    private static final ConcurrentMap<String, Version> VERSIONS = new ConcurrentHashMap<>();
+
+    private MailboxVersions() {
+    }
+
+    /**
+     * Record that a user's mailbox has changed.
+     *
+     * @param username The user whose sent or received <code>Messages</code>
+     *                 have changed
+     */
+    public static void changed(String username) {
+        if (username != null) {
+            VERSIONS.compute(username, (user, old) ->
+                    new Version(old == null ? 1 : old.counter + 1, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Get the ETag for a user's mailbox as it stands now.
+     *
+     * @param username The owner of the mailbox
+     *
+     * @return A quoted entity tag that changes whenever the mailbox does
+     */
+    public static String getETag(String username) {
+        Version v = VERSIONS.get(username);
+        return "\"" + Long.toString(EPOCH, 36) + "-" + (v == null ? 0 : v.counter) + "\"";
+    }
+
+    /**
+     * Get the time a user's mailbox last changed.
+     *
+     * @param username The owner of the mailbox
+     *
+     * @return The time of the last change in milliseconds since the epoch, or
+     *         the time the application started if there has been none since
+     */
+    public static long getLastModified(String username) {
+        Version v = VERSIONS.get(username);
+        return v == null ? EPOCH : v.lastModified;
+    }
+
+    private static final class Version {
+        private final long counter;
+        private final long lastModified;
+
+        private Version(long counter, long lastModified) {
+            this.counter = counter;
+            this.lastModified = lastModified;
+        }
+    }
+}
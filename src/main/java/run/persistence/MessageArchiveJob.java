@@ -0,0 +1,34 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+
+/**
+ * Nightly job moving old <code>Messages</code> into the compressed
+ * <code>messages_archive</code> table.
+ */
+@Slf4j
+@Component
+public class MessageArchiveJob {
+    @Value("${messages.archive.age-days:180}")
+    private int ageDays;
+
+    @Value("${messages.archive.batch-size:500}")
+    private int batchSize;
+
+    @Scheduled(cron = "${messages.archive.cron:0 30 3 * * *}")
+    public void archiveOldMessages() {
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(ageDays);
+
+        long start = System.nanoTime();
+        int archived = messageDao.archiveMessagesSentBefore(cutoff, batchSize);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        log.info("Archived {} messages sent before {} in {} ms", archived, cutoff, elapsedMs);
+    }
+}
@@ -0,0 +1,71 @@
+package run.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses <code>Message</code> bodies for storage in the
+ * <code>messages_archive</code> table.
+ */
+public final class MessageBodyCodec {
+    private MessageBodyCodec() {
+    }
+
+    /**
+     * Compress a message body.
+     *
+     * @param body The plain-text body of a <code>Message</code>
+     *
+     * @return The body as zlib-compressed data
+     */
+    public static byte[] compress(String body) {
+        byte[] input = body.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 2));
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a message body produced by {@link #compress(String)}.
+     *
+     * @param data The zlib-compressed data read from the archive
+     *
+     * @return The plain-text body of the <code>Message</code>
+     *
+     * @throws IllegalStateException If the data is not valid zlib data
+     */
+    public static String decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buffer);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buffer, 0, len);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Archived message body is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
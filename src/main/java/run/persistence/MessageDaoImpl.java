@@ -1,18 +1,44 @@
 package run.persistence;
 
+import lombok.extern.slf4j.Slf4j;
 import run.model.Message;
+import run.model.OutboxEvent;
 
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
+ * Database errors are logged and then thrown as a {@link DaoException} (see
+ * {@link DaoException#translate}); return values only report outcomes such as
+ * no match being found.
  *
  * @author michelle
  */
+@Slf4j
 public class MessageDaoImpl extends MySQLDao implements MessageDao {
+    // Every column except the body, used for list views that never show it
+    private static final String HEADER_COLUMNS =
+            "messageID, sender, recipient, subject, readStatus, deletedForSender, deletedForRecipient, dateSent";
+
+    // Fields that can be requested through a projection, mapped to their column
+    public static final Map<String, String> PROJECTABLE_FIELDS = Map.of(
+            "messageID", "messageID",
+            "sender", "sender",
+            "recipient", "recipient",
+            "subject", "subject",
+            "body", "body",
+            "readStatus", "readStatus",
+            "deletedForSender", "deletedForSender",
+            "deletedForRecipient", "deletedForRecipient",
+            "timestamp", "dateSent");
+
     public MessageDaoImpl(String propertiesFile) {
         super(propertiesFile);
     }
@@ -21,9 +47,24 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
         super(conn);
     }
 
+    /**
+     * Get a connection to the primary database through its
+     * {@link DatabaseCircuitBreaker}, so that while the database is down
+     * requests fail straight away instead of each waiting to time out.
+     *
+     * @return A connection, never null
+     *
+     * @throws DatabaseUnavailableException If the database cannot be reached
+     */
+    @Override
+    public Connection getConnection() {
+        return DatabaseCircuitBreaker.forProperties(getPropertiesFile())
+                .getConnection(super::getConnection, this::freeConnection);
+    }
+
     private static Message mapRow(ResultSet rs) throws SQLException {
         // Get all components
-        int messageID = rs.getInt("messageID");
+        long messageID = rs.getLong("messageID");
         String senderName = rs.getString("sender");
         String recipient = rs.getString("recipient");
         String subject = rs.getString("subject");
@@ -38,9 +79,322 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
             deletedForRecipient, timestamp);
     }
 
+    private static Message mapHeaderRow(ResultSet rs) throws SQLException {
+        // Same as mapRow(), but the body is left unloaded (null)
+        return new Message(rs.getLong("messageID"), rs.getString("sender"), rs.getString("recipient"),
+            rs.getString("subject"), null, rs.getBoolean("readStatus"), rs.getBoolean("deletedForSender"),
+            rs.getBoolean("deletedForRecipient"), rs.getTimestamp("dateSent").toLocalDateTime());
+    }
+
+    private static Message mapArchivedRow(ResultSet rs) throws SQLException {
+        // Same as mapRow(), for a messages_archive row read as HEADER_COLUMNS plus its compressed body
+        Message header = mapHeaderRow(rs);
+        return new Message(header.getMessageID(), header.getSender(), header.getRecipient(), header.getSubject(),
+                MessageBodyCodec.decompress(rs.getBytes("body")), header.isReadStatus(), header.isDeletedForSender(),
+                header.isDeletedForRecipient(), header.getTimestamp());
+    }
+
+    /**
+     * Add the archived <code>Messages</code> matching a condition to a list.
+     *
+     * @param con      The connection to query through
+     * @param where    The WHERE condition, with a parameter for each value
+     * @param messages The list to add the <code>Messages</code> to
+     * @param values   The values of the parameters, in order
+     */
+    private static void addArchivedMessages(Connection con, String where, List<Message> messages, String... values)
+            throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("SELECT " + HEADER_COLUMNS
+                + ", body FROM messages_archive WHERE " + where + " ORDER BY dateSent DESC")) {
+            for (int i = 0; i < values.length; i++) {
+                ps.setString(i + 1, values[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapArchivedRow(rs));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a <code>User</code> exists, consulting the shared
+     * {@link UsernameFilter} first so that usernames which are definitely not
+     * registered never reach the database.
+     *
+     * @param userDao  The <code>UserDaoImpl</code> to confirm possible matches with
+     * @param username The username to look for
+     *
+     * @return True if the <code>User</code> exists, false otherwise.
+     */
+    private static boolean userExists(UserDaoImpl userDao, String username) {
+        UsernameFilter filter = UsernameFilter.getInstance();
+        if (!filter.mightContain(username)) {
+            return false;
+        }
+        boolean found = userDao.findUserByUsername(username) != null;
+        filter.recordLookupResult(found);
+        return found;
+    }
+
+    /**
+     * Run a flag update against the live <code>messages</code> table and, if
+     * no row there matched, against <code>messages_archive</code>.
+     *
+     * @param con         The connection to run the update on
+     * @param setAndWhere The SET and WHERE clauses, taking the ID number and a
+     *                    username as parameters in that order
+     * @param messageID   The ID number of the <code>Message</code> to update
+     * @param username    The username the <code>Message</code> must belong to
+     *
+     * @return The number of rows updated
+     */
+    private static int updateLiveOrArchived(Connection con, String setAndWhere, long messageID, String username)
+            throws SQLException {
+        int rowsAffected = 0;
+        for (String table : new String[]{"messages", "messages_archive"}) {
+            try (PreparedStatement ps = con.prepareStatement("UPDATE " + table + " " + setAndWhere)) {
+                ps.setLong(1, messageID);
+                ps.setString(2, username);
+
+                rowsAffected = ps.executeUpdate();
+            }
+            if (rowsAffected > 0) {
+                break;
+            }
+        }
+        return rowsAffected;
+    }
+
+    /**
+     * Record that a user's mailbox has changed: their cached pages get a new
+     * ETag, and their reads are pinned to the primary for a while. Both go
+     * together, or a replica that hasn't caught up yet could render the old
+     * mailbox under the new ETag, and that page would then be served from
+     * the browser cache until the next change.
+     *
+     * @param username The user whose sent or received <code>Messages</code>
+     *                 have changed
+     */
+    private void mailboxChanged(String username) {
+        replicas().pinToPrimary(username);
+        MailboxVersions.changed(username);
+    }
+
+    private ReadReplicaRouter replicas() {
+        return ReadReplicaRouter.forProperties(getPropertiesFile());
+    }
+
+    private MessageShards shards() {
+        return MessageShards.forProperties(getPropertiesFile());
+    }
+
+    private MessageIdGenerator idGenerator() {
+        return SnowflakeMessageIdGenerator.forProperties(getPropertiesFile());
+    }
+
+    /**
+     * Get a connection for a read-only query: the user's shard if messages
+     * are sharded; otherwise a read replica if one is configured and healthy
+     * and the user has not written recently; otherwise the primary.
+     *
+     * @param username The user the query is being run for, or null
+     *
+     * @return A connection, to be given back with {@link #freeReadConnection(Connection)}
+     */
+    private Connection getReadConnection(String username) {
+        MessageShards shards = shards();
+        if (shards.isEnabled() && username != null) {
+            return shardConnection(shards, shards.shardFor(username));
+        }
+        Connection con = replicas().getReadConnection(username);
+        return con != null ? con : this.getConnection();
+    }
+
+    private void freeReadConnection(Connection con) {
+        if (!replicas().release(con) && !shards().release(con)) {
+            this.freeConnection(con);
+        }
+    }
+
+    /**
+     * Get a connection for changing a user's <code>Messages</code>: the user's
+     * shard if messages are sharded, otherwise the primary.
+     *
+     * @param username The user whose <code>Messages</code> are being changed
+     *
+     * @return A connection, to be given back with {@link #freeWriteConnection(Connection)}
+     */
+    private Connection getWriteConnection(String username) {
+        MessageShards shards = shards();
+        if (shards.isEnabled()) {
+            return shardConnection(shards, shards.shardFor(username));
+        }
+        return this.getConnection();
+    }
+
+    private void freeWriteConnection(Connection con) {
+        if (!shards().release(con)) {
+            this.freeConnection(con);
+        }
+    }
+
+    // Number of databases holding messages: one per shard, or just the primary
+    private int messageDatabaseCount() {
+        MessageShards shards = shards();
+        return shards.isEnabled() ? shards.count() : 1;
+    }
+
+    /**
+     * Get a connection to one of the databases holding messages, for work
+     * that is not tied to one user (lookups by ID, maintenance jobs).
+     *
+     * @param index    From 0 to {@link #messageDatabaseCount()} - 1
+     * @param readOnly True if the connection is only used for reading
+     *
+     * @return A connection, to be given back with {@link #freeReadConnection(Connection)}
+     */
+    private Connection getMessageDatabaseConnection(int index, boolean readOnly) {
+        MessageShards shards = shards();
+        if (shards.isEnabled()) {
+            return shardConnection(shards, index);
+        }
+        return readOnly ? this.getReadConnection(null) : this.getConnection();
+    }
+
+    // Each shard has its own circuit breaker, so one shard being down doesn't stop the others
+    private Connection shardConnection(MessageShards shards, int shard) {
+        return DatabaseCircuitBreaker.forProperties(getPropertiesFile() + "#shard" + shard).getConnection(() -> {
+            try {
+                return shards.getConnection(shard);
+            } catch (SQLException e) {
+                throw new DatabaseUnavailableException("Unable to connect to message shard " + shard, e);
+            }
+        }, shards::release);
+    }
+
+    /**
+     * Fail straight away if the circuit breaker for the primary database is
+     * open. <code>UserDaoImpl</code> and <code>FriendshipDaoImpl</code> open
+     * their own connections without going through the breaker, so this is
+     * checked before handing a request to them.
+     *
+     * @throws DatabaseUnavailableException If the circuit is open
+     */
+    private void checkDatabaseAvailable() {
+        if (DatabaseCircuitBreaker.forProperties(getPropertiesFile()).isOpen()) {
+            throw new DatabaseUnavailableException("Database " + getPropertiesFile()
+                    + " is unavailable (circuit open)", null);
+        }
+    }
+
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Run some work as one transaction on a connection, rolling it back if it
+     * fails.
+     *
+     * @return The result of the work
+     */
+    private static <T> T inTransaction(Connection con, SqlWork<T> work) throws SQLException {
+        con.setAutoCommit(false);
+        try {
+            T result = work.run();
+            con.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            try {
+                con.rollback();
+            } catch (SQLException rollbackEx) {
+                e.addSuppressed(rollbackEx);
+            }
+            throw e;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Run a flag update for the owner of a <code>Message</code>. When
+     * messages are sharded, the copy on the other party's shard is updated
+     * too, after the owner's change has been committed. If that fails the
+     * error is logged and the owner's change still stands; the copy is
+     * brought up to date the next time the flag is set, even though the
+     * owner's copy already has it. The owner's update and its outbox event
+     * are committed together, and the event is only recorded when this call
+     * is the one that changed the flag.
+     *
+     * @param setAndWhere       The SET and WHERE clauses, taking the ID number
+     *                          and the owner's username as parameters
+     * @param messageID         The ID number of the <code>Message</code>
+     * @param owner             The username the <code>Message</code> must
+     *                          belong to
+     * @param otherPartyColumn  The column holding the other party's username
+     * @param eventType         The outbox event to record if a row is updated
+     *
+     * @return The number of rows updated in the owner's copy
+     */
+    private int updateMessageFlag(String setAndWhere, long messageID, String owner, String otherPartyColumn,
+                                  OutboxEvent.Type eventType) throws SQLException {
+        MessageShards shards = shards();
+        Connection con = this.getWriteConnection(owner);
+        try {
+            // Only the caller whose update flips the flag records the event. The update locks the row
+            // before the event's INSERT ... SELECT reads it, so concurrent calls queue on that one lock
+            boolean changed = inTransaction(con, () -> {
+                int updated = updateLiveOrArchived(con, setAndWhere + " AND "
+                        + MessageOutbox.unchangedCondition(eventType), messageID, owner);
+                if (updated == 1) {
+                    MessageOutbox.appendForMessage(con, eventType, messageID);
+                }
+                return updated == 1;
+            });
+            // If already set, or not the owner's message, this only tells the two apart
+            int rowsAffected = changed ? 1 : updateLiveOrArchived(con, setAndWhere, messageID, owner);
+            if (rowsAffected == 1 && shards.isEnabled()) {
+                updateOtherPartyCopy(shards, con, setAndWhere, messageID, owner, otherPartyColumn);
+            }
+            return rowsAffected;
+        } finally {
+            this.freeWriteConnection(con);
+        }
+    }
+
+    // Bring the other party's copy of a message into line with the owner's. Never throws, see updateMessageFlag()
+    private void updateOtherPartyCopy(MessageShards shards, Connection con, String setAndWhere, long messageID,
+                                      String owner, String otherPartyColumn) {
+        try {
+            String otherParty = null;
+            String query = "SELECT " + otherPartyColumn + " FROM messages WHERE messageID = ? UNION ALL SELECT "
+                    + otherPartyColumn + " FROM messages_archive WHERE messageID = ?";
+            try (PreparedStatement ps = con.prepareStatement(query)) {
+                ps.setLong(1, messageID);
+                ps.setLong(2, messageID);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        otherParty = rs.getString(1);
+                    }
+                }
+            }
+
+            if (otherParty != null && shards.shardFor(otherParty) != shards.shardFor(owner)) {
+                Connection otherCon = shardConnection(shards, shards.shardFor(otherParty));
+                try {
+                    updateLiveOrArchived(otherCon, setAndWhere, messageID, owner);
+                } finally {
+                    shards.release(otherCon);
+                }
+            }
+        } catch (SQLException | DaoException e) {
+            DaoErrorLog.error(log, "updateOtherPartyCopy", e);
+        }
+    }
+
     /**
      * Retrieve all <code>Messages</code> in the database sent by a specific
-     * <code>User</code>.
+     * <code>User</code>, including archived ones, which follow the live ones.
      *
      * @param senderName The username of the <code>User</code> whose sent
      *                   <code>Messages</code> are being retrieved
@@ -54,7 +408,7 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
     public ArrayList<Message> getSentMessagesForUser(String senderName) {
         ArrayList<Message> sentMessages = new ArrayList<>();
 
-        Connection con = this.getConnection();
+        Connection con = this.getReadConnection(senderName);
         // Select all undeleted sent messages for a specific user
         String query = "SELECT * FROM messages WHERE sender = ? AND deletedForSender = FALSE";
         try (PreparedStatement ps = con.prepareStatement(query)) {
@@ -67,18 +421,20 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
                     sentMessages.add(m);
                 }
             }
+            addArchivedMessages(con, "sender = ? AND deletedForSender = FALSE", sentMessages, senderName);
         } catch (SQLException e) {
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in getSentMessagesForUser()");
-            System.out.println("Error: " + e.getMessage());
+            DaoErrorLog.error(log, "getSentMessagesForUser", e);
+            throw DaoException.translate("getSentMessagesForUser", e);
+        } finally {
+            this.freeReadConnection(con);
         }
-        this.freeConnection(con);
         return sentMessages;
     }
 
 
     /**
      * Retrieve all <code>Messages</code> in the database received by a specific
-     * <code>User</code>.
+     * <code>User</code>, including archived ones, which follow the live ones.
      *
      * @param recipientName The username of the <code>User</code> whose received
      *                      <code>Messages</code> are being retrieved
@@ -91,7 +447,7 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
     @Override
     public ArrayList<Message> getReceivedMessagesForUser(String recipientName) {
         ArrayList<Message> receivedMessages = new ArrayList<>();
-        Connection con = this.getConnection();
+        Connection con = this.getReadConnection(recipientName);
 
         // Select all undeleted received messages for a specific user
         String query = "SELECT * FROM messages WHERE recipient = ? AND deletedForRecipient = FALSE";
@@ -104,17 +460,166 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
                     receivedMessages.add(m);
                 }
             }
+            addArchivedMessages(con, "recipient = ? AND deletedForRecipient = FALSE", receivedMessages,
+                    recipientName);
         } catch (SQLException e) {
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in getReceivedMessagesForUser()");
-            System.out.println("Error: " + e.getMessage());
+            DaoErrorLog.error(log, "getReceivedMessagesForUser", e);
+            throw DaoException.translate("getReceivedMessagesForUser", e);
+        } finally {
+            this.freeReadConnection(con);
         }
-        this.freeConnection(con);
 
         return receivedMessages;
     }
 
     /**
-     * Get a specific <code>Message</code> based on its ID number.
+     * Retrieve the headers of all <code>Messages</code> received by a specific
+     * <code>User</code>, including archived <code>Messages</code>. The body of
+     * each <code>Message</code> is not loaded (it will be null); use
+     * {@link #getMessageById(long)} to open a <code>Message</code>.
+     *
+     * @param recipientName The username of the <code>User</code> whose received
+     *                      <code>Messages</code> are being retrieved
+     *
+     * @return An <code>ArrayList</code> of body-less <code>Message</code>
+     *         objects, newest first. This <code>ArrayList</code> will be empty
+     *         if there were no received <code>Message</code> entries found for
+     *         the supplied username.
+     */
+    public ArrayList<Message> getReceivedMessageHeadersForUser(String recipientName) {
+        return getMessageHeaders("recipient", "deletedForRecipient", recipientName, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieve one page of the headers of the <code>Messages</code> received
+     * by a specific <code>User</code>, newest first. Pass the ID of the last
+     * <code>Message</code> on one page as the cursor for the next.
+     *
+     * @param recipientName The username of the <code>User</code> whose received
+     *                      <code>Messages</code> are being retrieved
+     * @param beforeId      Only <code>Messages</code> with a smaller ID (sent
+     *                      earlier) are returned. Use <code>Long.MAX_VALUE</code>
+     *                      for the first page.
+     * @param limit         The maximum number of <code>Messages</code> to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code> body-less
+     *         <code>Message</code> objects, newest first.
+     */
+    public ArrayList<Message> getReceivedMessageHeadersForUser(String recipientName, long beforeId, int limit) {
+        return getMessageHeaders("recipient", "deletedForRecipient", recipientName, beforeId, limit);
+    }
+
+    /**
+     * Retrieve the headers of all <code>Messages</code> sent by a specific
+     * <code>User</code>, including archived <code>Messages</code>. The body of
+     * each <code>Message</code> is not loaded (it will be null).
+     *
+     * @param senderName The username of the <code>User</code> whose sent
+     *                   <code>Messages</code> are being retrieved
+     *
+     * @return An <code>ArrayList</code> of body-less <code>Message</code>
+     *         objects, newest first.
+     */
+    public ArrayList<Message> getSentMessageHeadersForUser(String senderName) {
+        return getMessageHeaders("sender", "deletedForSender", senderName, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count the unread <code>Messages</code> received by a specific
+     * <code>User</code>, including archived ones.
+     *
+     * @param recipientName The username of the <code>User</code>
+     *
+     * @return The number of unread, undeleted <code>Messages</code>
+     */
+    public int countUnreadMessages(String recipientName) {
+        Connection con = this.getReadConnection(recipientName);
+        String query = "SELECT (SELECT COUNT(*) FROM messages WHERE recipient = ? AND readStatus = FALSE "
+                + "AND deletedForRecipient = FALSE) + (SELECT COUNT(*) FROM messages_archive WHERE recipient = ? "
+                + "AND readStatus = FALSE AND deletedForRecipient = FALSE)";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, recipientName);
+            ps.setString(2, recipientName);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "countUnreadMessages", e);
+            throw DaoException.translate("countUnreadMessages", e);
+        } finally {
+            this.freeReadConnection(con);
+        }
+    }
+
+    /**
+     * Count every unread <code>Message</code> in the system, including
+     * archived ones. This reads the whole table, so it is only for occasional
+     * use such as loading a running total.
+     *
+     * @return The number of unread, undeleted <code>Messages</code>
+     */
+    public long countAllUnreadMessages() {
+        MessageShards shards = shards();
+        String unread = "WHERE readStatus = FALSE AND deletedForRecipient = FALSE";
+        String query = "SELECT recipient, COUNT(*) FROM (SELECT recipient FROM messages " + unread
+                + " UNION ALL SELECT recipient FROM messages_archive " + unread + ") u GROUP BY recipient";
+        long total = 0;
+        for (int i = 0; i < messageDatabaseCount(); i++) {
+            Connection con = this.getMessageDatabaseConnection(i, true);
+            try (PreparedStatement ps = con.prepareStatement(query);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    // With shards, a message is also copied to the sender's shard; count it only on the recipient's
+                    if (!shards.isEnabled() || shards.shardFor(rs.getString(1)) == i) {
+                        total += rs.getLong(2);
+                    }
+                }
+            } catch (SQLException e) {
+                DaoErrorLog.error(log, "countAllUnreadMessages", e);
+                throw DaoException.translate("countAllUnreadMessages", e);
+            } finally {
+                this.freeReadConnection(con);
+            }
+        }
+        return total;
+    }
+
+    private ArrayList<Message> getMessageHeaders(String userColumn, String deletedColumn, String username,
+                                                 long beforeId, int limit) {
+        ArrayList<Message> headers = new ArrayList<>();
+        Connection con = this.getReadConnection(username);
+
+        // IDs are time-ordered, so ordering by ID is ordering by when the message was sent
+        String query = "SELECT " + HEADER_COLUMNS + " FROM messages WHERE " + userColumn + " = ? AND "
+                + deletedColumn + " = FALSE AND messageID < ? UNION ALL SELECT " + HEADER_COLUMNS
+                + " FROM messages_archive WHERE " + userColumn + " = ? AND " + deletedColumn
+                + " = FALSE AND messageID < ? ORDER BY messageID DESC LIMIT ?";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, username);
+            ps.setLong(2, beforeId);
+            ps.setString(3, username);
+            ps.setLong(4, beforeId);
+            ps.setInt(5, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    headers.add(mapHeaderRow(rs));
+                }
+            }
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "getMessageHeaders", e);
+            throw DaoException.translate("getMessageHeaders", e);
+        } finally {
+            this.freeReadConnection(con);
+        }
+
+        return headers;
+    }
+
+    /**
+     * Get a specific <code>Message</code> based on its ID number. If the
+     * <code>Message</code> has been archived, it is read from the archive and
+     * its body is decompressed.
      *
      * @param messageID The ID number of the <code>Message</code> to be
      *                  retrieved.
@@ -123,27 +628,243 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      *         no match is found, the method returns null.
      */
     @Override
-    public Message getMessageById(int messageID) {
-        Connection con = this.getConnection();
+    public Message getMessageById(long messageID) {
+        Message m = null;
+        // When sharded the owner isn't known, so try each shard in turn
+        for (int i = 0; i < messageDatabaseCount() && m == null; i++) {
+            Connection con = this.getMessageDatabaseConnection(i, true);
+            try {
+                m = findMessageById(con, messageID);
+            } catch (SQLException e) {
+                DaoErrorLog.error(log, "getMessageById", e);
+                throw DaoException.translate("getMessageById", e);
+            } finally {
+                this.freeReadConnection(con);
+            }
+        }
+        return m;
+    }
+
+    private static Message findMessageById(Connection con, long messageID) throws SQLException {
         String query = "SELECT * FROM messages WHERE messageID = ?";
+        String archiveQuery = "SELECT " + HEADER_COLUMNS + ", body FROM messages_archive WHERE messageID = ?";
 
         Message m = null;
         try(PreparedStatement ps = con.prepareStatement(query)) {
-            ps.setInt(1, messageID);
+            ps.setLong(1, messageID);
 
             try(ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     m = mapRow(rs);
                 }
             }
-        } catch (SQLException e) {
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in getMessageById()");
-            System.out.println("Error: " + e.getMessage());
         }
-        this.freeConnection(con);
+
+        // Not in the live table, so check the archive
+        if (m == null) {
+            try (PreparedStatement archivePs = con.prepareStatement(archiveQuery)) {
+                archivePs.setLong(1, messageID);
+
+                try (ResultSet rs = archivePs.executeQuery()) {
+                    if (rs.next()) {
+                        m = mapArchivedRow(rs);
+                    }
+                }
+            }
+        }
         return m;
     }
 
+    /**
+     * Move every <code>Message</code> sent before a cut-off time into the
+     * <code>messages_archive</code> table, compressing its body. Work is done
+     * in batches, each batch in its own transaction, so the live table is
+     * never locked for long.
+     *
+     * @param cutoff    <code>Messages</code> sent before this time are archived
+     * @param batchSize The maximum number of <code>Messages</code> to move per
+     *                  transaction
+     *
+     * @return The number of <code>Messages</code> archived
+     */
+    public int archiveMessagesSentBefore(LocalDateTime cutoff, int batchSize) {
+        int archived = 0;
+        for (int i = 0; i < messageDatabaseCount(); i++) {
+            Connection con = this.getMessageDatabaseConnection(i, false);
+            try {
+                archived += archiveMessagesSentBefore(con, cutoff, batchSize);
+            } finally {
+                this.freeWriteConnection(con);
+            }
+        }
+        return archived;
+    }
+
+    private static int archiveMessagesSentBefore(Connection con, LocalDateTime cutoff, int batchSize) {
+        int archived = 0;
+
+        String selectQuery = "SELECT * FROM messages WHERE dateSent < ? ORDER BY messageID LIMIT ?";
+        String insertQuery = "INSERT INTO messages_archive(messageID, sender, recipient, subject, body, readStatus, "
+                + "deletedForSender, deletedForRecipient, dateSent) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        String deleteQuery = "DELETE FROM messages WHERE messageID = ?";
+        try {
+            con.setAutoCommit(false);
+            int batchCount;
+            do {
+                List<Message> batch = new ArrayList<>();
+                try (PreparedStatement ps = con.prepareStatement(selectQuery)) {
+                    ps.setTimestamp(1, Timestamp.valueOf(cutoff));
+                    ps.setInt(2, batchSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            batch.add(mapRow(rs));
+                        }
+                    }
+                }
+
+                try (PreparedStatement insert = con.prepareStatement(insertQuery);
+                     PreparedStatement delete = con.prepareStatement(deleteQuery)) {
+                    for (Message m : batch) {
+                        insert.setLong(1, m.getMessageID());
+                        insert.setString(2, m.getSender());
+                        insert.setString(3, m.getRecipient());
+                        insert.setString(4, m.getSubject());
+                        insert.setBytes(5, MessageBodyCodec.compress(m.getBody()));
+                        insert.setBoolean(6, m.isReadStatus());
+                        insert.setBoolean(7, m.isDeletedForSender());
+                        insert.setBoolean(8, m.isDeletedForRecipient());
+                        insert.setTimestamp(9, Timestamp.valueOf(m.getTimestamp()));
+                        insert.addBatch();
+
+                        delete.setLong(1, m.getMessageID());
+                        delete.addBatch();
+                    }
+                    if (!batch.isEmpty()) {
+                        insert.executeBatch();
+                        delete.executeBatch();
+                    }
+                }
+                con.commit();
+                batchCount = batch.size();
+                archived += batchCount;
+            } while (batchCount == batchSize);
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "archiveMessagesSentBefore", e);
+            try {
+                con.rollback();
+            } catch (SQLException rollbackEx) {
+                DaoErrorLog.error(log, "archiveMessagesSentBefore", rollbackEx);
+            }
+        } finally {
+            try {
+                con.setAutoCommit(true);
+            } catch (SQLException e) {
+                DaoErrorLog.error(log, "archiveMessagesSentBefore", e);
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Permanently delete one batch of <code>Messages</code> that both the
+     * sender and the recipient have deleted, from either the live or the
+     * archive table. Rows are picked first and then deleted by primary key, so
+     * each call holds row locks only for the rows it removes.
+     *
+     * @param batchSize The maximum number of <code>Messages</code> to delete
+     *
+     * @return The number of <code>Messages</code> deleted. Less than
+     *         <code>batchSize</code> means there is nothing left to purge.
+     */
+    public int purgeDeletedMessages(int batchSize) {
+        int purged = 0;
+        for (int i = 0; i < messageDatabaseCount() && purged < batchSize; i++) {
+            Connection con = this.getMessageDatabaseConnection(i, false);
+            try {
+                purged += purgeDeletedMessages(con, batchSize - purged);
+            } finally {
+                this.freeWriteConnection(con);
+            }
+        }
+        return purged;
+    }
+
+    private static int purgeDeletedMessages(Connection con, int batchSize) {
+        int purged = 0;
+
+        try {
+            for (String table : new String[]{"messages", "messages_archive"}) {
+                List<Long> ids = new ArrayList<>();
+                String selectQuery = "SELECT messageID FROM " + table
+                        + " WHERE deletedForSender = TRUE AND deletedForRecipient = TRUE LIMIT ?";
+                try (PreparedStatement ps = con.prepareStatement(selectQuery)) {
+                    ps.setInt(1, batchSize - purged);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getLong("messageID"));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    continue;
+                }
+
+                // Re-check the flags so a row is never removed unless both sides deleted it
+                String deleteQuery = "DELETE FROM " + table + " WHERE messageID IN ("
+                        + String.join(", ", Collections.nCopies(ids.size(), "?"))
+                        + ") AND deletedForSender = TRUE AND deletedForRecipient = TRUE";
+                try (PreparedStatement ps = con.prepareStatement(deleteQuery)) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        ps.setLong(i + 1, ids.get(i));
+                    }
+                    purged += ps.executeUpdate();
+                }
+                if (purged >= batchSize) {
+                    break;
+                }
+            }
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "purgeDeletedMessages", e);
+        }
+        return purged;
+    }
+
+    /**
+     * Hand due events from the outbox of every database holding messages to a
+     * delivery function. See {@link MessageOutbox#dispatch} for the ordering
+     * and retry rules. A database that can't be reached or whose batch fails
+     * is logged through {@link DaoErrorLog} and skipped until the next call,
+     * so one shard being down doesn't hold up the others' events.
+     *
+     * @param batchSize   The maximum number of events to read per database
+     * @param maxAttempts How many times an event is tried before it is dropped
+     * @param deliver     Delivers an event, returning false if it could not
+     *
+     * @return The largest number of events read from any one database. Less
+     *         than <code>batchSize</code> means no more are due.
+     */
+    public int dispatchOutbox(int batchSize, int maxAttempts, Predicate<OutboxEvent> deliver) {
+        int mostRead = 0;
+        for (int i = 0; i < messageDatabaseCount(); i++) {
+            Connection con;
+            try {
+                con = this.getMessageDatabaseConnection(i, false);
+            } catch (DaoException e) {
+                DaoErrorLog.error(log, "dispatchOutbox", e);
+                continue;
+            }
+            try {
+                // No transaction: the batch is claimed with a lease, so no locks are held while it is delivered
+                mostRead = Math.max(mostRead, MessageOutbox.dispatch(con, batchSize, maxAttempts, deliver));
+            } catch (SQLException e) {
+                DaoErrorLog.error(log, "dispatchOutbox", e);
+            } finally {
+                this.freeWriteConnection(con);
+            }
+        }
+        return mostRead;
+    }
+
     /**
      * Add a new <code>Message</code> to the database. This adds a new
      * <code>Message</code> to the database with the current time as its
@@ -161,44 +882,64 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      * -2 if the <code>Message</code> could not be added as either the sender or
      * the recipient do not exist.<br>
      * 0 if the <code>Message</code> could not be added for any other reason.
+     *
+     * @throws DaoException If the database could not be reached or the insert
+     *                      failed
      */
     @Override
-    public int sendMessage(String sender, String recipient, String subject, String body) {
+    public long sendMessage(String sender, String recipient, String subject, String body) {
+        checkDatabaseAvailable();
         // Confirm that the sender and recipient users exist in the system before
         // trying to send them a message
         UserDaoImpl userDao = new UserDaoImpl(getPropertiesFile());
-        if (userDao.findUserByUsername(sender) != null && userDao.findUserByUsername(recipient) != null) {
+        if (userExists(userDao, sender) && userExists(userDao, recipient)) {
             // Check if there is a Friendship established between the sender and recipient
             FriendshipDaoImpl friendshipDao = new FriendshipDaoImpl(getPropertiesFile());
             // If a Friendship is found between the two, continue to try and send the new message
             if (friendshipDao.checkFriendshipStatus(sender, recipient) != null) {
+                if (shards().isEnabled()) {
+                    long returnValue = insertShardedMessage(sender, recipient, subject, body);
+                    if (returnValue > 0) {
+                        mailboxChanged(sender);
+                        mailboxChanged(recipient);
+                    }
+                    return returnValue;
+                }
                 Connection con = this.getConnection();
 
-                int returnValue = 0;
-                String query = "INSERT INTO messages(sender, recipient, subject, body, dateSent) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP())";
-                try(PreparedStatement ps = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-                    ps.setString(1, sender);
-                    ps.setString(2, recipient);
-                    ps.setString(3, subject);
-                    ps.setString(4, body);
-
-                    ps.executeUpdate();
-
-                    try(ResultSet generatedKeys = ps.getGeneratedKeys()) {
-                        if (generatedKeys.next()) {
-                            returnValue = generatedKeys.getInt(1);
+                long returnValue = 0;
+                // The ID is generated here rather than by AUTO_INCREMENT, so there are no keys to read back
+                long messageID = idGenerator().nextId();
+                String query = "INSERT INTO messages(messageID, sender, recipient, subject, body, dateSent) VALUES (?, ?, ?, ?, ?, CURRENT_TIMESTAMP())";
+                try {
+                    // The message and its outbox event are committed together
+                    boolean inserted = inTransaction(con, () -> {
+                        try (PreparedStatement ps = con.prepareStatement(query)) {
+                            ps.setLong(1, messageID);
+                            ps.setString(2, sender);
+                            ps.setString(3, recipient);
+                            ps.setString(4, subject);
+                            ps.setString(5, body);
+                            if (ps.executeUpdate() != 1) {
+                                return false;
+                            }
                         }
+                        MessageOutbox.append(con, OutboxEvent.Type.MESSAGE_SENT, messageID, sender, recipient);
+                        return true;
+                    });
+                    if (inserted) {
+                        returnValue = messageID;
                     }
-                } catch(SQLIntegrityConstraintViolationException e){
-                    System.err.println(LocalDateTime.now() + ": An integrity constraint failed while adding a " +
-                            "Message" + "." + ".");
-                    System.out.println("Error: " + e.getMessage());
-                }catch(SQLException e){
-                    System.err.println(LocalDateTime.now() + ": An SQLException occurred while adding a Message." +
-                            ".");
-                    System.out.println("Error: " + e.getMessage());
+                } catch(SQLException e){
+                    DaoErrorLog.error(log, "sendMessage", e);
+                    throw DaoException.translate("sendMessage", e);
+                } finally {
+                    this.freeConnection(con);
+                }
+                if (returnValue > 0) {
+                    mailboxChanged(sender);
+                    mailboxChanged(recipient);
                 }
-                this.freeConnection(con);
                 return returnValue;
             } else { // No friendship exists between the sender and recipient, so return -1 as error code{
                 return -1;
@@ -208,6 +949,151 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
         }
     }
 
+    /**
+     * Insert a <code>Message</code> into the recipient's shard and, if it is
+     * a different one, the sender's shard.
+     *
+     * @return The ID of the new <code>Message</code>
+     *
+     * @throws DaoException If either copy could not be added, after removing
+     *                      any copy that was
+     */
+    private long insertShardedMessage(String sender, String recipient, String subject, String body) {
+        MessageShards shards = shards();
+        long messageID = idGenerator().nextId();
+
+        // Recipient's copy first: once it exists, the message has been delivered
+        int recipientShard = shards.shardFor(recipient);
+        int senderShard = shards.shardFor(sender);
+        int[] targets = recipientShard == senderShard ? new int[]{recipientShard}
+                : new int[]{recipientShard, senderShard};
+        // Both copies must carry the same timestamp
+        Timestamp dateSent = Timestamp.valueOf(LocalDateTime.now());
+
+        String query = "INSERT INTO messages(messageID, sender, recipient, subject, body, dateSent) VALUES (?, ?, ?, ?, ?, ?)";
+        List<Integer> written = new ArrayList<>();
+        try {
+            for (int shard : targets) {
+                Connection con = shardConnection(shards, shard);
+                try {
+                    // The event goes with the recipient's copy, in the same transaction
+                    inTransaction(con, () -> {
+                        try (PreparedStatement ps = con.prepareStatement(query)) {
+                            ps.setLong(1, messageID);
+                            ps.setString(2, sender);
+                            ps.setString(3, recipient);
+                            ps.setString(4, subject);
+                            ps.setString(5, body);
+                            ps.setTimestamp(6, dateSent);
+                            ps.executeUpdate();
+                        }
+                        if (shard == recipientShard) {
+                            MessageOutbox.append(con, OutboxEvent.Type.MESSAGE_SENT, messageID, sender, recipient);
+                        }
+                        return null;
+                    });
+                } finally {
+                    shards.release(con);
+                }
+                written.add(shard);
+            }
+        } catch (SQLException | DaoException e) {
+            DaoErrorLog.error(log, "insertShardedMessage", e);
+            // Don't leave half a message behind
+            for (int shard : written) {
+                try {
+                    Connection con = shardConnection(shards, shard);
+                    try (PreparedStatement ps = con.prepareStatement("DELETE FROM messages WHERE messageID = ?");
+                         PreparedStatement outbox = con.prepareStatement(
+                                 "DELETE FROM message_outbox WHERE messageID = ?")) {
+                        ps.setLong(1, messageID);
+                        ps.executeUpdate();
+                        outbox.setLong(1, messageID);
+                        outbox.executeUpdate();
+                    } finally {
+                        shards.release(con);
+                    }
+                } catch (SQLException | DaoException undoEx) {
+                    DaoErrorLog.error(log, "insertShardedMessage", undoEx);
+                }
+            }
+            throw e instanceof SQLException ? DaoException.translate("insertShardedMessage", (SQLException) e)
+                    : (DaoException) e;
+        }
+        return messageID;
+    }
+
+    /**
+     * Add several <code>Messages</code> to the database at once, using one
+     * batched INSERT per database. Unlike {@link #sendMessage} this does not
+     * check that the users exist or are friends, and records no outbox
+     * events, so it is only for bulk imports and generated data where that is
+     * already known.
+     *
+     * @param messages The <code>Messages</code> to add. Their ID numbers are
+     *                 ignored; a timestamp of null means now.
+     *
+     * @return The ID numbers given to the <code>Messages</code>, in the same
+     *         order.
+     *
+     * @throws DaoException If the <code>Messages</code> could not be added
+     */
+    public List<Long> insertMessages(List<Message> messages) {
+        MessageShards shards = shards();
+        MessageIdGenerator generator = idGenerator();
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+
+        // Assign every ID up front; no keys need to be read back afterwards
+        List<Long> ids = new ArrayList<>(messages.size());
+        Map<Integer, List<Integer>> byDatabase = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            ids.add(generator.nextId());
+            Message m = messages.get(i);
+            if (shards.isEnabled()) {
+                byDatabase.computeIfAbsent(shards.shardFor(m.getRecipient()), k -> new ArrayList<>()).add(i);
+                int senderShard = shards.shardFor(m.getSender());
+                if (senderShard != shards.shardFor(m.getRecipient())) {
+                    byDatabase.computeIfAbsent(senderShard, k -> new ArrayList<>()).add(i);
+                }
+            } else {
+                byDatabase.computeIfAbsent(0, k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        String query = "INSERT INTO messages(messageID, sender, recipient, subject, body, readStatus, dateSent) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        try {
+            for (Map.Entry<Integer, List<Integer>> database : byDatabase.entrySet()) {
+                Connection con = this.getMessageDatabaseConnection(database.getKey(), false);
+                try (PreparedStatement ps = con.prepareStatement(query)) {
+                    for (int i : database.getValue()) {
+                        Message m = messages.get(i);
+                        ps.setLong(1, ids.get(i));
+                        ps.setString(2, m.getSender());
+                        ps.setString(3, m.getRecipient());
+                        ps.setString(4, m.getSubject());
+                        ps.setString(5, m.getBody());
+                        ps.setBoolean(6, m.isReadStatus());
+                        ps.setTimestamp(7, m.getTimestamp() == null ? now : Timestamp.valueOf(m.getTimestamp()));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                } finally {
+                    this.freeWriteConnection(con);
+                }
+            }
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "insertMessages", e);
+            throw DaoException.translate("insertMessages", e);
+        }
+
+        for (Message m : messages) {
+            mailboxChanged(m.getSender());
+            mailboxChanged(m.getRecipient());
+        }
+        return ids;
+    }
+
     /**
      * Mark a specific <code>Message</code> as read in the database. If the
      * <code>Message</code> matching the supplied ID was not sent to the
@@ -223,23 +1109,18 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      *         otherwise.
      */
     @Override
-    public boolean markMessageAsRead(int messageID, String recipient) {
-        Connection con = null;
-        PreparedStatement ps = null;
+    public boolean markMessageAsRead(long messageID, String recipient) {
         int rowsAffected = 0;
 
         try {
-            con = this.getConnection();
-
-            String query = "UPDATE messages SET readStatus = TRUE WHERE messageID = ? AND recipient = ?";
-            ps = con.prepareStatement(query);
-            ps.setInt(1, messageID);
-            ps.setString(2, recipient);
-
-            rowsAffected = ps.executeUpdate();
+            rowsAffected = updateMessageFlag("SET readStatus = TRUE WHERE messageID = ? AND recipient = ?",
+                    messageID, recipient, "sender", OutboxEvent.Type.MESSAGE_READ);
         } catch(SQLException e){
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in markMessageAsRead().");
-            System.out.println("Error: " + e.getMessage());
+            DaoErrorLog.error(log, "markMessageAsRead", e);
+            throw DaoException.translate("markMessageAsRead", e);
+        }
+        if (rowsAffected == 1) {
+            mailboxChanged(recipient);
         }
         return rowsAffected == 1;
     }
@@ -260,19 +1141,17 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      *         sender, false otherwise.
      */
     @Override
-    public boolean deleteMessageForSender(int messageID, String sender) {
-        Connection con = this.getConnection();
-
+    public boolean deleteMessageForSender(long messageID, String sender) {
         int rowsAffected = 0;
-        String query = "UPDATE messages SET deletedForSender = TRUE WHERE messageID = ? AND sender = ?";
-        try (PreparedStatement ps = con.prepareStatement(query)){
-            ps.setInt(1, messageID);
-            ps.setString(2, sender);
-
-            rowsAffected = ps.executeUpdate();
+        try {
+            rowsAffected = updateMessageFlag("SET deletedForSender = TRUE WHERE messageID = ? AND sender = ?",
+                    messageID, sender, "recipient", OutboxEvent.Type.DELETED_FOR_SENDER);
         } catch(SQLException e){
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in deleteMessageForSender().");
-            System.out.println("Error: " + e.getMessage());
+            DaoErrorLog.error(log, "deleteMessageForSender", e);
+            throw DaoException.translate("deleteMessageForSender", e);
+        }
+        if (rowsAffected == 1) {
+            mailboxChanged(sender);
         }
         return rowsAffected == 1;
     }
@@ -283,31 +1162,35 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      * The search results are ordered  in descending order.
      * This method first checks if the user exists in the system. If the user does not exist, an empty list is returned.
      * If the user exists, theres a  query to find all messages where the recipient matches the
-     * username and the subject or body contains the search term.
+     * username and the subject or body contains the search term. Archived messages
+     * are matched on their subject only, as their bodies are stored compressed, and
+     * follow the live results. Messages the user has deleted are not returned.
      *
      *
      * @param username  username of the user whose messages are being searched.
      * @param searchTerm The term to search for
      * @return A list of messages that match the search term, or an empty list if no messages match or if the user does not exist.
-     * @throws SQLException If there is an error
+     * @throws DaoException If the search could not be run
      */
 
 
     @Override
     public List<Message> searchMessages(String username, String searchTerm) {
+        checkDatabaseAvailable();
         // Validate that the user exists in the system
         UserDaoImpl userDao = new UserDaoImpl(getPropertiesFile());
-        if (userDao.findUserByUsername(username) == null) {
+        if (!userExists(userDao, username)) {
             return Collections.emptyList(); // Return an empty list if the user doesn't exist
         }
 
         // Prepare the query to search for messages
-        String query = "SELECT * FROM messages WHERE recipient = ? AND (subject LIKE ? OR body LIKE ?) ORDER BY dateSent DESC";
+        String query = "SELECT * FROM messages WHERE recipient = ? AND deletedForRecipient = FALSE "
+                + "AND (subject LIKE ? OR body LIKE ?) ORDER BY dateSent DESC";
         List<Message> messages = new ArrayList<>();
 
         // Execute the query and retrieve results
-        try (Connection con = this.getConnection();
-             PreparedStatement ps = con.prepareStatement(query)) {
+        Connection con = this.getReadConnection(username);
+        try (PreparedStatement ps = con.prepareStatement(query)) {
 
             ps.setString(1, username);
             ps.setString(2, "%" + searchTerm + "%");
@@ -317,7 +1200,7 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
                 while (rs.next()) {
                     // Create the message object and add it to the list
                     Message message = new Message(
-                            rs.getInt("messageID"),
+                            rs.getLong("messageID"),
                             rs.getString("sender"),
                             rs.getString("recipient"),
                             rs.getString("subject"),
@@ -330,62 +1213,156 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
                     messages.add(message);
                 }
             }
+            // Archived bodies are compressed, so only their subjects can be searched
+            addArchivedMessages(con, "recipient = ? AND deletedForRecipient = FALSE AND subject LIKE ?", messages,
+                    username, "%" + searchTerm + "%");
         } catch (SQLException e) {
-            log.error("Error searching messages: ", e);
+            DaoErrorLog.error(log, "searchMessages", e);
+            throw DaoException.translate("searchMessages", e);
+        } finally {
+            this.freeReadConnection(con);
         }
 
         return messages;
     }
 
+    /**
+     * Stream a projection of the <code>Messages</code> received by a specific
+     * <code>User</code>, newest first, including archived
+     * <code>Messages</code>. Only the columns for the requested fields are
+     * selected, and each row is handed to the consumer as soon as it is read
+     * rather than being collected into a list.
+     *
+     * @param recipientName The username of the <code>User</code> whose received
+     *                      <code>Messages</code> are being retrieved
+     * @param fields        The fields to include, all keys of
+     *                      {@link #PROJECTABLE_FIELDS}
+     * @param searchTerm    If not null, only <code>Messages</code> whose subject
+     *                      or body contains this term are included. The bodies
+     *                      of archived <code>Messages</code> are compressed and
+     *                      so only their subjects are searched.
+     * @param consumer      Receives each row as a map of field name to value,
+     *                      in the order the fields were requested
+     */
+    public void streamReceivedMessageFields(String recipientName, List<String> fields, String searchTerm,
+                                            Consumer<Map<String, Object>> consumer) {
+        Connection con = this.getReadConnection(recipientName);
 
+        String columns = projectionColumns(fields);
+        String liveQuery = "SELECT " + columns + " FROM messages WHERE recipient = ? AND deletedForRecipient = FALSE"
+                + (searchTerm == null ? "" : " AND (subject LIKE ? OR body LIKE ?)") + " ORDER BY dateSent DESC";
+        String archiveQuery = "SELECT " + columns + " FROM messages_archive WHERE recipient = ? "
+                + "AND deletedForRecipient = FALSE" + (searchTerm == null ? "" : " AND subject LIKE ?")
+                + " ORDER BY dateSent DESC";
+        // Everything in the archive is older than everything live, so live rows then archived rows stays newest-first
+        try {
+            String[] queries = {liveQuery, archiveQuery};
+            for (int i = 0; i < queries.length; i++) {
+                boolean archived = i == 1;
+                try (PreparedStatement ps = con.prepareStatement(queries[i])) {
+                    ps.setString(1, recipientName);
+                    if (searchTerm != null) {
+                        ps.setString(2, "%" + searchTerm + "%");
+                        if (!archived) {
+                            ps.setString(3, "%" + searchTerm + "%");
+                        }
+                    }
+
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            consumer.accept(mapProjectedRow(rs, fields, archived));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            DaoErrorLog.error(log, "streamReceivedMessageFields", e);
+            throw DaoException.translate("streamReceivedMessageFields", e);
+        } finally {
+            this.freeReadConnection(con);
+        }
+    }
 
     /**
-     * Gets a specific message by its ID from the database.
-     *
-     * this method gets a message based on its id , if it does not find it , it returns null
+     * Get a projection of a specific <code>Message</code> based on its ID
+     * number. The sender, recipient and deleted flags are always read so that
+     * callers can check who may see the <code>Message</code>, even if they
+     * were not requested.
      *
+     * @param messageID The ID number of the <code>Message</code> to be
+     *                  retrieved.
+     * @param fields    The fields to include, all keys of
+     *                  {@link #PROJECTABLE_FIELDS}
      *
-     * @param id The ID of the message .
-     * @return iteturns the message with the specific id
+     * @return A map of field name to value, or null if no match is found.
      */
-    @Override
-    public Message getMessageById(int id) {
-        // Initialize the Message object to be returned
-        Message message = null;
-
-        // SQL query to select a message by its ID
-        String query = "SELECT * FROM messages WHERE messageID = ?";
-
-        // Establish a database connection
-        try (Connection con = this.getConnection();
-             PreparedStatement ps = con.prepareStatement(query)) {
+    public Map<String, Object> getMessageFieldsById(long messageID, List<String> fields) {
+        List<String> selected = new ArrayList<>(fields);
+        for (String ownerField : new String[]{"sender", "recipient", "deletedForSender", "deletedForRecipient"}) {
+            if (!selected.contains(ownerField)) {
+                selected.add(ownerField);
+            }
+        }
 
-            // Set the message ID parameter in the query
-            ps.setInt(1, id);
+        String columns = projectionColumns(selected);
+        Map<String, Object> row = null;
+        // When sharded the owner isn't known, so try each shard in turn
+        for (int i = 0; i < messageDatabaseCount() && row == null; i++) {
+            Connection con = this.getMessageDatabaseConnection(i, true);
+            try {
+                for (String table : new String[]{"messages", "messages_archive"}) {
+                    try (PreparedStatement ps = con.prepareStatement("SELECT " + columns + " FROM " + table
+                            + " WHERE messageID = ?")) {
+                        ps.setLong(1, messageID);
 
-            // Execute the query and process the results
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    // If a message with the given ID is found, construct the Message object
-                    message = new Message(
-                            rs.getInt("messageID"),
-                            rs.getString("sender"),
-                            rs.getString("recipient"),
-                            rs.getString("subject"),
-                            rs.getString("body"),
-                            rs.getBoolean("readStatus"),
-                            rs.getBoolean("deletedForSender"),
-                            rs.getBoolean("deletedForRecipient"),
-                            rs.getTimestamp("dateSent").toLocalDateTime()
-                    );
+                        try (ResultSet rs = ps.executeQuery()) {
+                            if (rs.next()) {
+                                row = mapProjectedRow(rs, selected, table.equals("messages_archive"));
+                            }
+                        }
+                    }
+                    if (row != null) {
+                        break;
+                    }
                 }
+            } catch (SQLException e) {
+                DaoErrorLog.error(log, "getMessageFieldsById", e);
+                throw DaoException.translate("getMessageFieldsById", e);
+            } finally {
+                this.freeReadConnection(con);
             }
-        } catch (SQLException e) {
-            log.error("Error retrieving message by ID: ", e);
         }
+        return row;
+    }
+
+    private static String projectionColumns(List<String> fields) {
+        List<String> columns = new ArrayList<>();
+        for (String field : fields) {
+            String column = PROJECTABLE_FIELDS.get(field);
+            if (column == null) {
+                throw new IllegalArgumentException("Unknown message field: " + field);
+            }
+            columns.add(column);
+        }
+        return String.join(", ", columns);
+    }
 
-        // Return the message object, or null if no message was found
-        return message;
+    private static Map<String, Object> mapProjectedRow(ResultSet rs, List<String> fields, boolean archived)
+            throws SQLException {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (String field : fields) {
+            String column = PROJECTABLE_FIELDS.get(field);
+            switch (column) {
+                case "messageID" -> row.put(field, rs.getLong(column));
+                case "readStatus", "deletedForSender", "deletedForRecipient" ->
+                        row.put(field, rs.getBoolean(column));
+                case "dateSent" -> row.put(field, rs.getTimestamp(column).toLocalDateTime());
+                case "body" -> row.put(field, archived
+                        ? MessageBodyCodec.decompress(rs.getBytes(column)) : rs.getString(column));
+                default -> row.put(field, rs.getString(column));
+            }
+        }
+        return row;
     }
 
 
@@ -406,48 +1383,41 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      *         recipient, false otherwise.
      */
     @Override
-    public boolean deleteMessageForRecipient(int messageID, String recipient) {
-        Connection con = this.getConnection();
+    public boolean deleteMessageForRecipient(long messageID, String recipient) {
         int rowsAffected = 0;
 
-        String query = "UPDATE messages SET deletedForRecipient = TRUE WHERE messageID = ? AND recipient = ?";
-        try(PreparedStatement ps = con.prepareStatement(query)) {
-            ps.setInt(1, messageID);
-            ps.setString(2, recipient);
-
-            rowsAffected = ps.executeUpdate();
+        try {
+            rowsAffected = updateMessageFlag("SET deletedForRecipient = TRUE WHERE messageID = ? AND recipient = ?",
+                    messageID, recipient, "sender", OutboxEvent.Type.DELETED_FOR_RECIPIENT);
         } catch(SQLException e){
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in deleteMessageForRecipient().");
-            System.out.println("Error: " + e.getMessage());
+            DaoErrorLog.error(log, "deleteMessageForRecipient", e);
+            throw DaoException.translate("deleteMessageForRecipient", e);
+        }
+        if (rowsAffected == 1) {
+            mailboxChanged(recipient);
         }
-        this.freeConnection(con);
         return rowsAffected == 1;
     }
 
-    @Override
-    public List<Message> searchMessages(String username, String searchTerm) {
-        return List.of();
-    }
-
     public static void main(String[] args) {
         MessageDaoImpl messagesDao = new MessageDaoImpl("database.properties");
 
         //********************Testing sending a message*************************
         // Test the send message method:
-        int resultOfValidSend = messagesDao.sendMessage("Charles", "Rick",
+        long resultOfValidSend = messagesDao.sendMessage("Charles", "Rick",
                 "Testing the send method",
                 "Just need to check if the send message method is working!");
         System.out.println("Valid message sent? : " + resultOfValidSend
                 + " (This should give a number > 0. This value is the ID of the new message)");
         System.out.println();
 
-        int resultOfNoFriendshipSend = messagesDao.sendMessage("Charles", "Michelle",
+        long resultOfNoFriendshipSend = messagesDao.sendMessage("Charles", "Michelle",
                 "Testing the send method", "Just need to check if the send message "
                 + "method is working! This should NOT work");
         System.out.println("No Friendship sending message ? : " + resultOfNoFriendshipSend + " (This should be -1)");
         System.out.println();
 
-        int resultOfInvalidUserSend = messagesDao.sendMessage("Charles", "James",
+        long resultOfInvalidUserSend = messagesDao.sendMessage("Charles", "James",
                 "Testing the send method where a user doesn't exist", "Just need "
                 + "to check if the send message method is working! "
                 + "This should NOT work");
@@ -0,0 +1,17 @@
+package run.persistence;
+
+/**
+ * Hands out <code>Message</code> ID numbers that are unique across every
+ * database the <code>messages</code> table is stored in. IDs are assigned
+ * in the application before the <code>Message</code> is inserted.
+ */
+public interface MessageIdGenerator {
+    /**
+     * Get a new, never before used, <code>Message</code> ID number.
+     *
+     * @return The new ID number
+     *
+     * @throws IllegalStateException If no ID number could be generated
+     */
+    long nextId();
+}
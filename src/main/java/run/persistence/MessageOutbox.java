@@ -0,0 +1,254 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import run.model.OutboxEvent;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Reads and writes the <code>message_outbox</code> table (see
+ * {@link OutboxEvent}). Events are appended on the same connection, and in
+ * the same transaction, as the change they describe, so an event exists if
+ * and only if its change was committed.
+ */
+@Slf4j
+final class MessageOutbox {
+    static final long MAX_RETRY_DELAY_MS = 60_000;
+    // Far longer than delivering a batch takes (batch size x offer timeout x subscribers)
+    static final long CLAIM_MS = 5 * 60_000;
+
+    private MessageOutbox() {
+    }
+
+    /**
+     * Record an event for a new, unread <code>Message</code>.
+     */
+    static void append(Connection con, OutboxEvent.Type type, long messageID, String sender, String recipient)
+            throws SQLException {
+        String query = "INSERT INTO message_outbox(eventType, messageID, sender, recipient, createdAt, nextAttemptAt) "
+                + "VALUES (?, ?, ?, ?, ?, ?)";
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, type.name());
+            ps.setLong(2, messageID);
+            ps.setString(3, sender);
+            ps.setString(4, recipient);
+            ps.setTimestamp(5, now);
+            ps.setTimestamp(6, now);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Record an event for a change just made to a <code>Message</code>
+     * already in the database, live or archived, copying its sender,
+     * recipient and read status from it. Call this after the update, in the
+     * same transaction, and only if the update actually changed the row (see
+     * {@link #unchangedCondition}), so the row is already locked and
+     * concurrent callers can't both record the same change. The read status
+     * recorded is the one from before the change.
+     *
+     * @return The number of events recorded, 0 or 1
+     */
+    static int appendForMessage(Connection con, OutboxEvent.Type type, long messageID) throws SQLException {
+        String readStatusBefore = type == OutboxEvent.Type.MESSAGE_READ ? "FALSE" : "readStatus";
+        String columns = "?, messageID, sender, recipient, " + readStatusBefore + ", ?, ?";
+        String where = " WHERE messageID = ?";
+        String query = "INSERT INTO message_outbox(eventType, messageID, sender, recipient, readStatus, createdAt, "
+                + "nextAttemptAt) SELECT " + columns + " FROM messages" + where + " UNION ALL SELECT " + columns
+                + " FROM messages_archive" + where;
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, type.name());
+            ps.setTimestamp(2, now);
+            ps.setTimestamp(3, now);
+            ps.setLong(4, messageID);
+            ps.setString(5, type.name());
+            ps.setTimestamp(6, now);
+            ps.setTimestamp(7, now);
+            ps.setLong(8, messageID);
+            return ps.executeUpdate();
+        }
+    }
+
+    // True while the change an event describes has not been made yet
+    static String unchangedCondition(OutboxEvent.Type type) {
+        return switch (type) {
+            case MESSAGE_SENT -> "FALSE";
+            // Reading a message the recipient has deleted changes nothing anyone counts
+            case MESSAGE_READ -> "readStatus = FALSE AND deletedForRecipient = FALSE";
+            case DELETED_FOR_SENDER -> "deletedForSender = FALSE";
+            case DELETED_FOR_RECIPIENT -> "deletedForRecipient = FALSE";
+        };
+    }
+
+    /**
+     * Hand one batch of due events to a delivery function, oldest first.
+     *
+     * Events for the same recipient are delivered in the order they were
+     * recorded: once one fails, no later event for that recipient is
+     * delivered until it has gone through. Delivered events are removed.
+     * Failed ones are retried with exponential backoff, and dropped (and
+     * logged) after <code>maxAttempts</code> attempts.
+     *
+     * The batch is claimed first, by stamping it with a claim token and an
+     * expiry {@link #CLAIM_MS} ms away, and only then delivered. Every
+     * change runs on its own (autocommit) and touches rows by primary key,
+     * so no lock is held while events are delivered, and nothing stops
+     * <code>sendMessage</code> and the flag updates from adding to the outbox
+     * meanwhile. Another dispatcher sharing the database skips claimed events,
+     * and any later events for the same recipients, until the claim is
+     * released or expires. If this one stops before finishing, its events are
+     * claimed again once the claim expires, so they can be delivered twice.
+     * Two dispatchers that pick their batches at the same moment can still
+     * split one recipient's events between them, and deliver them out of
+     * order. The subscribers only keep counts, so this doesn't affect them.
+     *
+     * Needs these columns, on top of those in {@link OutboxEvent}:
+     * <pre>
+     *     claimedBy varchar(36),
+     *     claimedUntil timestamp null
+     * </pre>
+     *
+     * @param con         A connection to the database holding the outbox, in
+     *                    autocommit mode
+     * @param batchSize   The maximum number of events to read
+     * @param maxAttempts How many times an event is tried before it is dropped
+     * @param deliver     Delivers an event, returning false if it could not
+     *
+     * @return The number of events picked, whether or not they were claimed
+     *         or delivered. Less than <code>batchSize</code> means none are
+     *         left that are due.
+     */
+    static int dispatch(Connection con, int batchSize, int maxAttempts, Predicate<OutboxEvent> deliver)
+            throws SQLException {
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp nowTs = Timestamp.valueOf(now);
+        // Skip recipients whose oldest undelivered event is waiting for a retry or claimed by someone else, to keep
+        // their events in order
+        String pick = "SELECT eventID FROM message_outbox o WHERE nextAttemptAt <= ? "
+                + "AND (claimedUntil IS NULL OR claimedUntil < ?) AND NOT EXISTS (SELECT 1 FROM message_outbox e "
+                + "WHERE e.recipient = o.recipient AND e.eventID < o.eventID "
+                + "AND (e.nextAttemptAt > ? OR e.claimedUntil >= ?)) ORDER BY eventID LIMIT ?";
+        List<Long> picked = new ArrayList<>();
+        try (PreparedStatement ps = con.prepareStatement(pick)) {
+            ps.setTimestamp(1, nowTs);
+            ps.setTimestamp(2, nowTs);
+            ps.setTimestamp(3, nowTs);
+            ps.setTimestamp(4, nowTs);
+            ps.setInt(5, batchSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    picked.add(rs.getLong("eventID"));
+                }
+            }
+        }
+        if (picked.isEmpty()) {
+            return 0;
+        }
+
+        // Claim them, unless another dispatcher got there first
+        String claim = UUID.randomUUID().toString();
+        try (PreparedStatement ps = con.prepareStatement("UPDATE message_outbox SET claimedBy = ?, claimedUntil = ? "
+                + "WHERE eventID IN (" + placeholders(picked.size()) + ") "
+                + "AND (claimedUntil IS NULL OR claimedUntil < ?)")) {
+            ps.setString(1, claim);
+            ps.setTimestamp(2, Timestamp.valueOf(now.plusNanos(CLAIM_MS * 1_000_000)));
+            for (int i = 0; i < picked.size(); i++) {
+                ps.setLong(i + 3, picked.get(i));
+            }
+            ps.setTimestamp(picked.size() + 3, nowTs);
+            ps.executeUpdate();
+        }
+
+        List<OutboxEvent> events = new ArrayList<>();
+        try (PreparedStatement ps = con.prepareStatement(
+                "SELECT eventID, eventType, messageID, sender, recipient, readStatus, createdAt, attempts "
+                        + "FROM message_outbox WHERE eventID IN (" + placeholders(picked.size()) + ") "
+                        + "AND claimedBy = ? ORDER BY eventID")) {
+            for (int i = 0; i < picked.size(); i++) {
+                ps.setLong(i + 1, picked.get(i));
+            }
+            ps.setString(picked.size() + 1, claim);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    events.add(new OutboxEvent(rs.getLong("eventID"),
+                            OutboxEvent.Type.valueOf(rs.getString("eventType")), rs.getLong("messageID"),
+                            rs.getString("sender"), rs.getString("recipient"), rs.getBoolean("readStatus"),
+                            rs.getTimestamp("createdAt").toLocalDateTime(), rs.getInt("attempts")));
+                }
+            }
+        }
+
+        List<Long> done = new ArrayList<>();
+        List<OutboxEvent> failed = new ArrayList<>();
+        Set<String> blocked = new HashSet<>();
+        for (OutboxEvent event : events) {
+            if (blocked.contains(event.getRecipient())) {
+                continue;
+            }
+            if (deliver.test(event)) {
+                done.add(event.getEventID());
+            } else {
+                blocked.add(event.getRecipient());
+                failed.add(event);
+            }
+        }
+
+        for (OutboxEvent event : failed) {
+            int attempts = event.getAttempts() + 1;
+            if (attempts >= maxAttempts) {
+                log.error("Dropping outbox event {} after {} attempts", event, attempts);
+                done.add(event.getEventID());
+                continue;
+            }
+            long delayMs = Math.min(MAX_RETRY_DELAY_MS, 100L << Math.min(attempts, 20));
+            try (PreparedStatement ps = con.prepareStatement("UPDATE message_outbox SET attempts = ?, "
+                    + "nextAttemptAt = ?, claimedBy = NULL, claimedUntil = NULL WHERE eventID = ? AND claimedBy = ?")) {
+                ps.setInt(1, attempts);
+                ps.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now().plusNanos(delayMs * 1_000_000)));
+                ps.setLong(3, event.getEventID());
+                ps.setString(4, claim);
+                ps.executeUpdate();
+            }
+        }
+
+        if (!done.isEmpty()) {
+            try (PreparedStatement ps = con.prepareStatement("DELETE FROM message_outbox WHERE eventID IN ("
+                    + placeholders(done.size()) + ") AND claimedBy = ?")) {
+                for (int i = 0; i < done.size(); i++) {
+                    ps.setLong(i + 1, done.get(i));
+                }
+                ps.setString(done.size() + 1, claim);
+                ps.executeUpdate();
+            }
+        }
+
+        // Anything left was held back behind a failed event for the same recipient: let it go for the next batch
+        try (PreparedStatement ps = con.prepareStatement("UPDATE message_outbox SET claimedBy = NULL, "
+                + "claimedUntil = NULL WHERE eventID IN (" + placeholders(picked.size()) + ") AND claimedBy = ?")) {
+            for (int i = 0; i < picked.size(); i++) {
+                ps.setLong(i + 1, picked.get(i));
+            }
+            ps.setString(picked.size() + 1, claim);
+            ps.executeUpdate();
+        }
+        return picked.size();
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+}
@@ -0,0 +1,83 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalTime;
+
+/**
+ * Background job that hard-deletes <code>Messages</code> which both the
+ * sender and the recipient have deleted. Those rows are never shown to anyone
+ * again but still have to be stepped over by every inbox and outbox query.
+ *
+ * Rows are removed in small batches with a pause between them, and the job
+ * does nothing during the configured peak hours. The peak may run past
+ * midnight (e.g. from 18 to 2); equal start and end hours mean no peak.
+ */
+@Slf4j
+@Component
+public class MessagePurgeJob {
+    @Value("${messages.purge.batch-size:200}")
+    private int batchSize;
+
+    @Value("${messages.purge.max-batches-per-run:50}")
+    private int maxBatchesPerRun;
+
+    @Value("${messages.purge.pause-ms:250}")
+    private long pauseMs;
+
+    @Value("${messages.purge.peak-start-hour:8}")
+    private int peakStartHour;
+
+    @Value("${messages.purge.peak-end-hour:22}")
+    private int peakEndHour;
+
+    @Scheduled(fixedDelayString = "${messages.purge.interval-ms:900000}")
+    public void purgeDeletedMessages() {
+        if (isPeakHour(LocalTime.now().getHour(), peakStartHour, peakEndHour)) {
+            log.debug("Skipping message purge during peak hours");
+            return;
+        }
+
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        long start = System.nanoTime();
+        int reclaimed = 0;
+        int batches = 0;
+        int purged;
+        do {
+            purged = messageDao.purgeDeletedMessages(batchSize);
+            reclaimed += purged;
+            batches++;
+            if (purged == batchSize && batches < maxBatchesPerRun) {
+                try {
+                    Thread.sleep(pauseMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } while (purged == batchSize && batches < maxBatchesPerRun);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        log.info("Message purge reclaimed {} rows in {} batches, taking {} ms", reclaimed, batches, elapsedMs);
+    }
+
+    /**
+     * Check whether an hour falls in a peak period.
+     *
+     * @param hour      The hour of the day, 0 to 23
+     * @param startHour The first peak hour
+     * @param endHour   The hour the peak ends (exclusive). If it is before
+     *                  <code>startHour</code>, the peak runs past midnight.
+     *
+     * @return True if <code>hour</code> is a peak hour
+     */
+    static boolean isPeakHour(int hour, int startHour, int endHour) {
+        if (startHour <= endHour) {
+            return hour >= startHour && hour < endHour;
+        }
+        return hour >= startHour || hour < endHour;
+    }
+}
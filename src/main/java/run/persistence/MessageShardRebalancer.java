@@ -0,0 +1,169 @@
+package run.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves <code>Messages</code> onto the shards they belong on after the
+ * number of shards has changed.
+ *
+ * Add the new shards to the end of the <code>shard.N</code> list and raise
+ * <code>shard.count</code>, then run this tool against the new properties
+ * file. For every row on every shard it works out which shards should hold a
+ * copy (the sender's and the recipient's), copies the row to any of those
+ * that are missing it, and removes it from the shard it is on if that shard
+ * should no longer hold it. Copies are made before anything is removed and
+ * every step can be repeated, so the tool can be stopped and re-run at any
+ * point; the application keeps working throughout, though a moved mailbox
+ * may look incomplete until its rows have been copied.
+ *
+ * Usage: MessageShardRebalancer [propertiesFile] [batchSize]
+ */
+public class MessageShardRebalancer {
+    private final MessageShards shards;
+    private final int batchSize;
+
+    public MessageShardRebalancer(MessageShards shards, int batchSize) {
+        this.shards = shards;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Rebalance every shard.
+     *
+     * @return The number of rows copied and the number removed, in that order
+     *
+     * @throws SQLException If any shard could not be read or written
+     */
+    public long[] rebalance() throws SQLException {
+        long[] totals = new long[2];
+        for (int shard = 0; shard < shards.count(); shard++) {
+            for (String table : new String[]{"messages", "messages_archive"}) {
+                long[] moved = rebalanceTable(shard, table);
+                totals[0] += moved[0];
+                totals[1] += moved[1];
+                System.out.println("Shard " + (shard + 1) + " " + table + ": copied " + moved[0] + ", removed "
+                        + moved[1]);
+            }
+        }
+        return totals;
+    }
+
+    private long[] rebalanceTable(int shard, String table) throws SQLException {
+        long copied = 0;
+        long removed = 0;
+        long lastId = 0;
+        Connection source = shards.getConnection(shard);
+        try {
+            while (true) {
+                List<Object[]> rows = new ArrayList<>();
+                List<String> columns = new ArrayList<>();
+                try (PreparedStatement ps = source.prepareStatement("SELECT * FROM " + table
+                        + " WHERE messageID > ? ORDER BY messageID LIMIT ?")) {
+                    ps.setLong(1, lastId);
+                    ps.setInt(2, batchSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        ResultSetMetaData meta = rs.getMetaData();
+                        for (int i = 1; i <= meta.getColumnCount(); i++) {
+                            columns.add(meta.getColumnName(i));
+                        }
+                        while (rs.next()) {
+                            Object[] row = new Object[columns.size()];
+                            for (int i = 0; i < row.length; i++) {
+                                row[i] = rs.getObject(i + 1);
+                            }
+                            rows.add(row);
+                        }
+                    }
+                }
+                if (rows.isEmpty()) {
+                    break;
+                }
+
+                int idColumn = columns.indexOf("messageID");
+                int senderColumn = columns.indexOf("sender");
+                int recipientColumn = columns.indexOf("recipient");
+                List<Long> misplaced = new ArrayList<>();
+                for (Object[] row : rows) {
+                    Set<Integer> targets = new HashSet<>();
+                    targets.add(shards.shardFor((String) row[senderColumn]));
+                    targets.add(shards.shardFor((String) row[recipientColumn]));
+                    for (int target : targets) {
+                        if (target != shard && copyIfMissing(target, table, columns, row, idColumn)) {
+                            copied++;
+                        }
+                    }
+                    if (!targets.contains(shard)) {
+                        misplaced.add(((Number) row[idColumn]).longValue());
+                    }
+                }
+
+                if (!misplaced.isEmpty()) {
+                    String delete = "DELETE FROM " + table + " WHERE messageID IN ("
+                            + String.join(", ", Collections.nCopies(misplaced.size(), "?")) + ")";
+                    try (PreparedStatement ps = source.prepareStatement(delete)) {
+                        for (int i = 0; i < misplaced.size(); i++) {
+                            ps.setLong(i + 1, misplaced.get(i));
+                        }
+                        removed += ps.executeUpdate();
+                    }
+                }
+                lastId = ((Number) rows.get(rows.size() - 1)[idColumn]).longValue();
+            }
+        } finally {
+            shards.release(source);
+        }
+        return new long[]{copied, removed};
+    }
+
+    private boolean copyIfMissing(int shard, String table, List<String> columns, Object[] row, int idColumn)
+            throws SQLException {
+        Connection target = shards.getConnection(shard);
+        try {
+            try (PreparedStatement ps = target.prepareStatement("SELECT 1 FROM " + table + " WHERE messageID = ?")) {
+                ps.setObject(1, row[idColumn]);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        return false;
+                    }
+                }
+            }
+
+            String insert = "INSERT INTO " + table + "(" + String.join(", ", columns) + ") VALUES ("
+                    + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+            try (PreparedStatement ps = target.prepareStatement(insert)) {
+                for (int i = 0; i < row.length; i++) {
+                    ps.setObject(i + 1, row[i]);
+                }
+                ps.executeUpdate();
+            }
+            return true;
+        } finally {
+            shards.release(target);
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        String propertiesFile = args.length > 0 ? args[0] : "database.properties";
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        MessageShards shards = MessageShards.forProperties(propertiesFile);
+        if (!shards.isEnabled()) {
+            System.out.println("No shards are configured in " + propertiesFile + ", nothing to rebalance.");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long[] totals = new MessageShardRebalancer(shards, batchSize).rebalance();
+        System.out.println("Rebalanced " + shards.count() + " shards: copied " + totals[0] + " rows, removed "
+                + totals[1] + " rows in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
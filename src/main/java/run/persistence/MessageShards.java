@@ -0,0 +1,169 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Describes the databases the <code>messages</code> table is sharded across.
+ *
+ * Shards are configured in the same properties file as the primary database:
+ * <pre>
+ *     shard.count=4
+ *     shard.1.url=jdbc:mysql://messages1:3306/ca2
+ *     shard.1.username=app
+ *     shard.1.password=secret
+ *     ...
+ * </pre>
+ * Each <code>Message</code> is stored on the shard of its sender and on the
+ * shard of its recipient (once, if those are the same shard), so every
+ * mailbox query only ever touches one shard. A username's shard is chosen by
+ * jump consistent hashing, so when shards are added only about 1/N of the
+ * mailboxes move; {@link MessageShardRebalancer} moves them. Usernames are
+ * trimmed and lower-cased before hashing, the same as in
+ * {@link UsernameFilter}, because the database treats "Charles" and
+ * "charles" as the same user; both spellings must find the same mailbox.
+ *
+ * The <code>users</code> and <code>friends</code> tables stay on the primary
+ * database. With no shards configured all messages stay on the primary too.
+ */
+@Slf4j
+public class MessageShards {
+    private static final ConcurrentMap<String, MessageShards> SHARDS = new ConcurrentHashMap<>();
+    private static final MessageShards NOT_SHARDED = new MessageShards(new Properties());
+
+    private final List<Shard> shards;
+    private final Set<Connection> issued = ConcurrentHashMap.newKeySet();
+
+    MessageShards(Properties properties) {
+        List<Shard> configured = new ArrayList<>();
+        int count = Integer.parseInt(properties.getProperty("shard.count", "0"));
+        for (int i = 1; i <= count; i++) {
+            String url = properties.getProperty("shard." + i + ".url");
+            if (url == null) {
+                // Skipping a shard would silently move every mailbox after it, so refuse to start instead
+                throw new IllegalStateException("shard." + i + ".url is missing");
+            }
+            configured.add(new Shard(url, properties.getProperty("shard." + i + ".username"),
+                    properties.getProperty("shard." + i + ".password")));
+        }
+        this.shards = Collections.unmodifiableList(configured);
+    }
+
+    /**
+     * Get the shard layout described in a properties file. Each file is only
+     * read once.
+     *
+     * @param propertiesFile The properties file the DAO was created with
+     *
+     * @return The shard layout for that file
+     */
+    public static MessageShards forProperties(String propertiesFile) {
+        if (propertiesFile == null) {
+            return NOT_SHARDED;
+        }
+        return SHARDS.computeIfAbsent(propertiesFile,
+                file -> new MessageShards(ReadReplicaRouter.loadProperties(file)));
+    }
+
+    public boolean isEnabled() {
+        return !shards.isEmpty();
+    }
+
+    public int count() {
+        return shards.size();
+    }
+
+    /**
+     * Get the shard holding a user's mailbox.
+     *
+     * @param username The owner of the mailbox
+     *
+     * @return The index of the shard, from 0 to {@link #count()} - 1
+     */
+    public int shardFor(String username) {
+        return jumpConsistentHash(hash(username), shards.size());
+    }
+
+    /**
+     * Open a connection to a shard. Connections returned here must be given
+     * back through {@link #release(Connection)}.
+     *
+     * @param shard The index of the shard
+     *
+     * @return A connection to that shard
+     *
+     * @throws SQLException If the shard cannot be reached
+     */
+    public Connection getConnection(int shard) throws SQLException {
+        Shard s = shards.get(shard);
+        Connection con = DriverManager.getConnection(s.url, s.username, s.password);
+        issued.add(con);
+        return con;
+    }
+
+    /**
+     * Give back a connection if it came from {@link #getConnection(int)}.
+     *
+     * @param con The connection a DAO method has finished with
+     *
+     * @return True if the connection was a shard connection (and has now been
+     *         closed), false if it belongs to the primary.
+     */
+    public boolean release(Connection con) {
+        if (con == null || !issued.remove(con)) {
+            return false;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            log.warn("Unable to close shard connection: {}", e.getMessage());
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes of the normalised username, so the shard doesn't depend on String.hashCode()
+    private static long hash(String username) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : username.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Lamping & Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+    static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    private static class Shard {
+        private final String url;
+        private final String username;
+        private final String password;
+
+        private Shard(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package run.persistence;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import run.model.OutboxEvent;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that drains the <code>message_outbox</code> table in batches
+ * and hands each event to every {@link OutboxSubscriber}.
+ *
+ * An event counts as delivered once every subscriber has queued it. If a
+ * subscriber's queue stays full for longer than the offer timeout, the event
+ * (and every later event for the same recipient) is left in the outbox and
+ * retried with backoff, so a slow subscriber holds events back in the
+ * database rather than in memory. Each subscription remembers the events it
+ * has already queued, so a retry only goes to the subscribers that missed it.
+ *
+ * Each batch is claimed with a lease before it is delivered (see
+ * {@link MessageOutbox#dispatch}), so when several instances of the
+ * application share a database, only one of them delivers a given event, and
+ * no database locks are held while events are handed over.
+ */
+@Slf4j
+@Component
+public class OutboxDispatcher {
+    @Value("${outbox.dispatch.batch-size:200}")
+    private int batchSize;
+
+    @Value("${outbox.dispatch.max-batches-per-run:20}")
+    private int maxBatchesPerRun;
+
+    @Value("${outbox.dispatch.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${outbox.dispatch.offer-timeout-ms:50}")
+    private long offerTimeoutMs;
+
+    private final List<Subscription> subscriptions;
+
+    public OutboxDispatcher(ObjectProvider<OutboxSubscriber> subscribers) {
+        this.subscriptions = subscribers.orderedStream().map(Subscription::new).toList();
+        subscriptions.forEach(Subscription::start);
+    }
+
+    @Scheduled(fixedDelayString = "${outbox.dispatch.interval-ms:500}")
+    public void dispatch() {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        MessageDaoImpl messageDao = new MessageDaoImpl("database.properties");
+        int batches = 0;
+        int read;
+        do {
+            // Database failures are logged (and sampled) by DaoErrorLog inside dispatchOutbox, not thrown
+            read = messageDao.dispatchOutbox(batchSize, maxAttempts, this::deliver);
+            batches++;
+        } while (read == batchSize && batches < maxBatchesPerRun);
+    }
+
+    // Only ever called from the scheduler thread, so the queued sets need no locking
+    private boolean deliver(OutboxEvent event) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.queued.containsKey(event)) {
+                continue;
+            }
+            try {
+                if (!subscription.queue.offer(event, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    log.debug("Outbox subscriber {} is full, holding back event {}", subscription.name, event);
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            subscription.queued.put(event, Boolean.TRUE);
+        }
+        // Everyone has it, and it is about to leave the outbox
+        subscriptions.forEach(s -> s.queued.remove(event));
+        return true;
+    }
+
+    @PreDestroy
+    public void stop() {
+        subscriptions.forEach(s -> s.worker.interrupt());
+    }
+
+    private static final class Subscription implements Runnable {
+        // Events dropped after too many attempts are never removed, so the oldest are forgotten
+        private static final int MAX_REMEMBERED = 10_000;
+
+        private final OutboxSubscriber subscriber;
+        private final String name;
+        private final BlockingQueue<OutboxEvent> queue;
+        private final Thread worker;
+        // Events queued for this subscriber while some other subscriber was full
+        private final Map<OutboxEvent, Boolean> queued = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<OutboxEvent, Boolean> eldest) {
+                return size() > MAX_REMEMBERED;
+            }
+        };
+
+        private Subscription(OutboxSubscriber subscriber) {
+            this.subscriber = subscriber;
+            this.name = subscriber.getClass().getSimpleName();
+            this.queue = new ArrayBlockingQueue<>(subscriber.getQueueCapacity());
+            this.worker = new Thread(this, "outbox-" + name);
+            worker.setDaemon(true);
+        }
+
+        private void start() {
+            worker.start();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                OutboxEvent event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    subscriber.onEvent(event);
+                } catch (Exception e) {
+                    log.warn("Outbox subscriber {} failed on event {}", name, event, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package run.persistence;
+
+import run.model.OutboxEvent;
+
+/**
+ * Receives <code>Message</code> events from the outbox, off the request path.
+ * Any Spring bean implementing this interface is picked up by
+ * {@link OutboxDispatcher}.
+ *
+ * Each subscriber has its own bounded queue and worker thread, so events
+ * arrive one at a time, and events for the same recipient arrive in the order
+ * they happened. A subscriber is not sent an event again just because
+ * another subscriber's queue was full, but delivery is still at least once:
+ * an event can repeat if the application stops between queueing it and
+ * removing it from the outbox, so handlers should tolerate seeing an event
+ * twice ({@link OutboxEvent#equals} identifies it).
+ */
+public interface OutboxSubscriber {
+    /**
+     * Handle an event. An exception is logged and the event is not retried
+     * for this subscriber.
+     *
+     * @param event The event
+     */
+    void onEvent(OutboxEvent event) throws Exception;
+
+    /**
+     * Get how many events may wait for this subscriber. While its queue is
+     * full, events stay in the outbox and are retried later.
+     *
+     * @return The queue capacity
+     */
+    default int getQueueCapacity() {
+        return 1000;
+    }
+}
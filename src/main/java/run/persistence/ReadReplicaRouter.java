@@ -0,0 +1,303 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes read-only DAO queries to read replicas of the primary database.
+ *
+ * Replicas are configured in the same properties file as the primary:
+ * <pre>
+ *     replica.count=2
+ *     replica.1.url=jdbc:mysql://replica1:3306/ca2
+ *     replica.1.username=reader
+ *     replica.1.password=secret
+ *     replica.2.url=jdbc:mysql://replica2:3306/ca2
+ *     ...
+ *     # How long a user's reads stay on the primary after they write (default 5000)
+ *     replica.pin-ms=5000
+ *     # How long a replica that failed to connect is skipped for (default 30000)
+ *     replica.retry-ms=30000
+ *     # How many idle connections are kept open to each replica (default 10)
+ *     replica.pool-size=10
+ * </pre>
+ * Any JDBC URL works, so two embedded databases (e.g.
+ * <code>jdbc:h2:mem:replica1</code> and <code>jdbc:h2:mem:replica2</code>)
+ * can stand in for real replicas locally. With no replicas configured every
+ * read goes to the primary, exactly as before.
+ *
+ * Replicas are used in round-robin order, skipping any that recently failed
+ * to give a connection. Connections given back are kept open for reuse, up to
+ * <code>replica.pool-size</code> per replica, and checked before being
+ * handed out again.
+ *
+ * After a user writes, their reads are pinned to the primary for a short time
+ * so that they usually see their own changes. Replication lag itself is not
+ * measured: a replica further behind than <code>replica.pin-ms</code> still
+ * gets reads, so set the pin time above the lag the replicas normally run
+ * at. Pins are held in memory by each instance of the application, so they
+ * only work if a user's requests keep going to the same instance (sticky
+ * sessions), and they are forgotten on restart.
+ */
+@Slf4j
+public class ReadReplicaRouter {
+    private static final ConcurrentMap<String, ReadReplicaRouter> ROUTERS = new ConcurrentHashMap<>();
+    private static final ReadReplicaRouter NO_REPLICAS = new ReadReplicaRouter(new Properties());
+
+    private final List<Replica> replicas;
+    private final long pinMillis;
+    private final long retryMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ConcurrentMap<String, Long> pinnedUntil = new ConcurrentHashMap<>();
+    // Connections handed out, and the replica each one belongs to
+    private final ConcurrentMap<Connection, Replica> issued = new ConcurrentHashMap<>();
+
+    ReadReplicaRouter(Properties properties) {
+        List<Replica> configured = new ArrayList<>();
+        int count = Integer.parseInt(properties.getProperty("replica.count", "0"));
+        int poolSize = Integer.parseInt(properties.getProperty("replica.pool-size", "10"));
+        for (int i = 1; i <= count; i++) {
+            String url = properties.getProperty("replica." + i + ".url");
+            if (url == null) {
+                log.warn("replica.{}.url is missing, skipping that replica", i);
+                continue;
+            }
+            configured.add(new Replica(url, properties.getProperty("replica." + i + ".username"),
+                    properties.getProperty("replica." + i + ".password"), poolSize));
+        }
+        this.replicas = Collections.unmodifiableList(configured);
+        this.pinMillis = Long.parseLong(properties.getProperty("replica.pin-ms", "5000"));
+        this.retryMillis = Long.parseLong(properties.getProperty("replica.retry-ms", "30000"));
+    }
+
+    /**
+     * Get the router for the databases described in a properties file. Each
+     * file is only read once.
+     *
+     * @param propertiesFile The properties file the DAO was created with
+     *
+     * @return The router for that file
+     */
+    public static ReadReplicaRouter forProperties(String propertiesFile) {
+        if (propertiesFile == null) {
+            return NO_REPLICAS;
+        }
+        return ROUTERS.computeIfAbsent(propertiesFile, file -> new ReadReplicaRouter(loadProperties(file)));
+    }
+
+    /**
+     * Get a connection for a read-only query made on behalf of a user.
+     *
+     * @param username The user the query is for, or null if it is not for a
+     *                 particular user
+     *
+     * @return A connection to a healthy replica, or null if the query should
+     *         go to the primary (no replicas configured, none healthy, or the
+     *         user wrote recently). Connections returned here must be given
+     *         back through {@link #release(Connection)}.
+     */
+    public Connection getReadConnection(String username) {
+        if (replicas.isEmpty() || isPinned(username)) {
+            return null;
+        }
+
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (!replica.isHealthy()) {
+                continue;
+            }
+            try {
+                Connection con = replica.borrow();
+                issued.put(con, replica);
+                return con;
+            } catch (SQLException e) {
+                replica.markDown(retryMillis);
+                log.warn("Read replica {} unavailable, skipping it for {} ms: {}", replica.url, retryMillis,
+                        e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Give back a connection if it came from {@link #getReadConnection(String)}.
+     *
+     * @param con The connection a DAO method has finished with
+     *
+     * @return True if the connection was a replica connection (and has now
+     *         been returned to its pool or closed), false if it belongs to
+     *         the primary and must be freed by the caller.
+     */
+    public boolean release(Connection con) {
+        Replica replica = con == null ? null : issued.remove(con);
+        if (replica == null) {
+            return false;
+        }
+        replica.giveBack(con);
+        return true;
+    }
+
+    /**
+     * Send a user's reads to the primary for the next <code>replica.pin-ms</code>
+     * milliseconds. Called after every write made on their behalf.
+     *
+     * @param username The user who has just written
+     */
+    public void pinToPrimary(String username) {
+        if (username != null && !replicas.isEmpty()) {
+            pinnedUntil.put(username, System.currentTimeMillis() + pinMillis);
+        }
+    }
+
+    private boolean isPinned(String username) {
+        if (username == null) {
+            return false;
+        }
+        Long until = pinnedUntil.get(username);
+        if (until == null) {
+            return false;
+        }
+        if (until < System.currentTimeMillis()) {
+            pinnedUntil.remove(username, until);
+            return false;
+        }
+        return true;
+    }
+
+    static Properties loadProperties(String propertiesFile) {
+        Properties properties = new Properties();
+        try (InputStream in = openProperties(propertiesFile)) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn("Unable to read {} for replica settings, all reads will use the primary: {}", propertiesFile,
+                    e.getMessage());
+        }
+        return properties;
+    }
+
+    private static InputStream openProperties(String propertiesFile) throws IOException {
+        InputStream in = ReadReplicaRouter.class.getClassLoader().getResourceAsStream(propertiesFile);
+        return in != null ? in : new FileInputStream(propertiesFile);
+    }
+
+    private static class Replica {
+        private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+        private final String url;
+        private final String username;
+        private final String password;
+        private final BlockingQueue<Connection> idle;
+        private volatile long downUntil = 0;
+
+        private Replica(String url, String username, String password, int poolSize) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+            this.idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        }
+
+        // An idle connection that still works, or a new one
+        private Connection borrow() throws SQLException {
+            Connection con;
+            while ((con = idle.poll()) != null) {
+                if (con.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    return con;
+                }
+                close(con);
+            }
+            con = DriverManager.getConnection(url, username, password);
+            con.setReadOnly(true);
+            return con;
+        }
+
+        private void giveBack(Connection con) {
+            try {
+                if (!con.isClosed() && con.getAutoCommit() && idle.offer(con)) {
+                    return;
+                }
+            } catch (SQLException e) {
+                log.debug("Read replica connection unusable, closing it: {}", e.getMessage());
+            }
+            close(con);
+        }
+
+        private static void close(Connection con) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+                log.warn("Unable to close read replica connection: {}", e.getMessage());
+            }
+        }
+
+        private boolean isHealthy() {
+            return downUntil < System.currentTimeMillis();
+        }
+
+        private void markDown(long millis) {
+            downUntil = System.currentTimeMillis() + millis;
+        }
+    }
+
+    public static void main(String[] args) throws SQLException {
+        // Two in-memory databases standing in for replicas (needs H2 on the classpath), each holding a
+        // messages table with one row that says which replica it is in
+        Properties properties = new Properties();
+        properties.setProperty("replica.count", "2");
+        properties.setProperty("replica.pin-ms", "1000");
+        for (int i = 1; i <= 2; i++) {
+            String url = "jdbc:h2:mem:replica" + i + ";DB_CLOSE_DELAY=-1";
+            properties.setProperty("replica." + i + ".url", url);
+            try (Connection con = DriverManager.getConnection(url);
+                 Statement st = con.createStatement()) {
+                st.execute("CREATE TABLE messages (messageID bigint PRIMARY KEY, recipient varchar(10), "
+                        + "subject varchar(100))");
+                st.execute("INSERT INTO messages VALUES (" + i + ", 'Charles', 'Stored on replica " + i + "')");
+            }
+        }
+        ReadReplicaRouter router = new ReadReplicaRouter(properties);
+
+        for (int i = 0; i < 4; i++) {
+            System.out.println("Read " + i + " returned: " + readSubject(router, "Charles"));
+        }
+
+        router.pinToPrimary("Charles");
+        System.out.println("Read after a write returned: " + readSubject(router, "Charles")
+                + " (This should be the primary)");
+        System.out.println("Another user's read returned: " + readSubject(router, "Rick")
+                + " (This should be a replica)");
+        System.out.println("Idle connections kept: " + router.replicas.get(0).idle.size() + " and "
+                + router.replicas.get(1).idle.size() + " (This should be 1 and 1)");
+    }
+
+    // Runs a query the way a DAO would, on whichever database the router picks
+    private static String readSubject(ReadReplicaRouter router, String username) throws SQLException {
+        Connection con = router.getReadConnection(username);
+        if (con == null) {
+            return "the primary";
+        }
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("SELECT subject FROM messages")) {
+            return rs.next() ? rs.getString("subject") : "nothing";
+        } finally {
+            router.release(con);
+        }
+    }
+}
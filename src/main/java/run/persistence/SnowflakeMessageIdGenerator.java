@@ -0,0 +1,131 @@
+package run.persistence;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates time-ordered 64-bit <code>Message</code> ID numbers in the
+ * application, with no database round trip and no coordination between
+ * application nodes. Each ID is laid out as:
+ * <pre>
+ *     | 1 bit unused | 41 bits milliseconds since 2024-01-01 | 10 bits node | 12 bits sequence |
+ * </pre>
+ * so IDs sort in the order the <code>Messages</code> were created (to the
+ * millisecond, then by node), which makes them usable as a total order and
+ * as pagination cursors. Each node can hand out 4096 IDs per millisecond
+ * for about 69 years.
+ *
+ * The node number must be unique per running application instance. It is
+ * read from the <code>message.node-id</code> system property (e.g.
+ * <code>-Dmessage.node-id=3</code>, so instances can share one properties
+ * file) or else from <code>message.node-id</code> (0 to 1023) in the DAO
+ * properties file. There is no default: two instances both falling back to
+ * the same node would hand out the same IDs, so generating an ID fails until
+ * one is configured.
+ */
+public class SnowflakeMessageIdGenerator implements MessageIdGenerator {
+    // 2024-01-01T00:00:00Z
+    private static final long EPOCH_MILLIS = 1_704_067_200_000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final ConcurrentMap<String, SnowflakeMessageIdGenerator> GENERATORS = new ConcurrentHashMap<>();
+
+    private final long node;
+    // Last timestamp handed out (shifted left by SEQUENCE_BITS) plus the sequence within it
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeMessageIdGenerator(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    /**
+     * Get the generator for the node described in a properties file. Every
+     * DAO created with the same file shares one generator, so IDs from it
+     * never collide.
+     *
+     * @param propertiesFile The properties file the DAO was created with
+     *
+     * @return The generator for that file
+     */
+    public static SnowflakeMessageIdGenerator forProperties(String propertiesFile) {
+        String key = propertiesFile == null ? "" : propertiesFile;
+        return GENERATORS.computeIfAbsent(key, file -> new SnowflakeMessageIdGenerator(nodeIdFor(file)));
+    }
+
+    private static long nodeIdFor(String propertiesFile) {
+        String nodeId = System.getProperty("message.node-id");
+        if (nodeId == null && !propertiesFile.isEmpty()) {
+            nodeId = ReadReplicaRouter.loadProperties(propertiesFile).getProperty("message.node-id");
+        }
+        if (nodeId == null) {
+            // Not cached, so this is checked again on the next call
+            throw new IllegalStateException("message.node-id is not set (as a system property or in "
+                    + (propertiesFile.isEmpty() ? "a properties file" : propertiesFile)
+                    + "), refusing to generate message IDs that could collide with another instance's");
+        }
+        return Long.parseLong(nodeId.trim());
+    }
+
+    @Override
+    public long nextId() {
+        while (true) {
+            long current = state.get();
+            long lastTick = current >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - EPOCH_MILLIS;
+
+            long next;
+            if (now > lastTick) {
+                next = now << SEQUENCE_BITS;
+            } else if ((current & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                // Same millisecond, or the clock went backwards: keep counting on the last tick so IDs never repeat
+                next = current + 1;
+            } else {
+                // 4096 IDs already used this millisecond, wait for the next one
+                Thread.onSpinWait();
+                continue;
+            }
+
+            if (state.compareAndSet(current, next)) {
+                long tick = next >>> SEQUENCE_BITS;
+                long sequence = next & SEQUENCE_MASK;
+                return (tick << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+
+    /**
+     * Get the time a <code>Message</code> ID was generated at.
+     *
+     * @param id A <code>Message</code> ID from this generator
+     *
+     * @return The time, to the millisecond, in the system time zone
+     */
+    public static LocalDateTime timestampOf(long id) {
+        long millis = (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    /**
+     * Get the smallest ID that could be generated at or after a given time,
+     * e.g. to turn a date into a pagination cursor.
+     *
+     * @param time The time
+     *
+     * @return The smallest possible ID for that millisecond
+     */
+    public static long firstIdAt(LocalDateTime time) {
+        long millis = time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() - EPOCH_MILLIS;
+        return Math.max(0, millis) << (NODE_BITS + SEQUENCE_BITS);
+    }
+}
@@ -0,0 +1,71 @@
+package run.persistence;
+
+import org.springframework.stereotype.Component;
+import run.model.OutboxEvent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps each user's unread message count in memory, so it can be shown
+ * without counting rows on every request.
+ *
+ * A user's count is loaded from the database the first time it is asked for.
+ * After that it is kept up to date from events: a sent message adds one, and
+ * reading or deleting an unread message takes one away. Because events
+ * arrive shortly after the change, a count can lag the database by a moment,
+ * and an event that arrives twice or overlaps the load can leave it one out;
+ * counts are dropped and reloaded every {@link #RELOAD_AFTER_MS} ms to bound
+ * that.
+ */
+@Component
+public class UnreadCountSubscriber implements OutboxSubscriber {
+    static final long RELOAD_AFTER_MS = 5 * 60_000;
+
+    private final ConcurrentMap<String, UnreadCount> counts = new ConcurrentHashMap<>();
+
+    @Override
+    public void onEvent(OutboxEvent event) {
+        UnreadCount count = counts.get(event.getRecipient());
+        if (count == null) {
+            return;
+        }
+        switch (event.getEventType()) {
+            case MESSAGE_SENT -> count.unread.incrementAndGet();
+            case MESSAGE_READ, DELETED_FOR_RECIPIENT -> {
+                if (!event.isReadStatus()) {
+                    count.unread.updateAndGet(n -> Math.max(0, n - 1));
+                }
+            }
+            case DELETED_FOR_SENDER -> {
+                // Doesn't change what the recipient has unread
+            }
+        }
+    }
+
+    /**
+     * Get the number of unread <code>Messages</code> a user has received.
+     *
+     * @param username The user
+     *
+     * @return The number of unread, undeleted <code>Messages</code>
+     */
+    public int getUnreadCount(String username) {
+        UnreadCount count = counts.get(username);
+        if (count == null || System.currentTimeMillis() - count.loadedAt > RELOAD_AFTER_MS) {
+            count = new UnreadCount(new MessageDaoImpl("database.properties").countUnreadMessages(username));
+            counts.put(username, count);
+        }
+        return count.unread.get();
+    }
+
+    private static final class UnreadCount {
+        private final AtomicInteger unread;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private UnreadCount(int unread) {
+            this.unread = new AtomicInteger(unread);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter holding every username in the <code>users</code> table.
+ *
+ * The filter sits in front of <code>UserDaoImpl.findUserByUsername()</code>:
+ * if it says a username is definitely absent, the caller can skip the
+ * database query entirely. A "might contain" answer still has to be confirmed
+ * against the database, and the callers report back whether the user was
+ * really there so that the false-positive rate can be tracked.
+ *
+ * Usernames are never removed from the filter. If users are deleted the
+ * filter only becomes less selective, never wrong; call
+ * {@link #load(Connection)} to rebuild it.
+ *
+ * Until the filter has been loaded every lookup answers "might contain", so
+ * behaviour is unchanged from querying the database directly.
+ *
+ * Usernames are trimmed and lower-cased before hashing, because the database
+ * compares them case-insensitively: " Charles" and "charles" find the same
+ * user there, so they must not be definite misses here.
+ */
+@Slf4j
+public class UsernameFilter {
+    // Sized for ~100,000 usernames at a 1% false-positive rate
+    private static final int DEFAULT_EXPECTED_USERNAMES = 100_000;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final UsernameFilter INSTANCE =
+            new UsernameFilter(DEFAULT_EXPECTED_USERNAMES, DEFAULT_FALSE_POSITIVE_RATE);
+
+    private final int numBits;
+    private final int numHashes;
+    private volatile AtomicLongArray bits;
+    // The bit set being built by load(), if any, so that adds made meanwhile aren't lost
+    private volatile AtomicLongArray loading;
+    private volatile boolean loaded = false;
+
+    // Metrics
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong definiteMisses = new AtomicLong();
+    private final AtomicLong confirmedHits = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    public UsernameFilter(int expectedUsernames, double falsePositiveRate) {
+        // Standard Bloom filter sizing: m = -n ln(p) / (ln 2)^2, k = (m / n) ln 2
+        double m = -expectedUsernames * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.numBits = (int) Math.max(64, Math.ceil(m));
+        this.numHashes = (int) Math.max(1, Math.round((numBits / (double) expectedUsernames) * Math.log(2)));
+        this.bits = new AtomicLongArray((numBits + 63) / 64);
+    }
+
+    /**
+     * Get the filter shared by all DAO instances.
+     *
+     * @return The application-wide <code>UsernameFilter</code>
+     */
+    public static UsernameFilter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * (Re)build the filter from every username in the <code>users</code>
+     * table. The new bit set is built off to the side and swapped in once
+     * complete, so lookups running concurrently are never given false
+     * negatives.
+     *
+     * @param con The connection to read the <code>users</code> table through
+     *
+     * @return The number of usernames loaded
+     *
+     * @throws SQLException If the <code>users</code> table could not be read
+     */
+    public synchronized int load(Connection con) throws SQLException {
+        AtomicLongArray newBits = new AtomicLongArray(bits.length());
+        // Set before the query starts, so every username committed after the query's snapshot is added here too
+        this.loading = newBits;
+        int count = 0;
+        String query = "SELECT username FROM users";
+        try (PreparedStatement ps = con.prepareStatement(query);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                setBits(newBits, rs.getString("username"));
+                count++;
+            }
+        } finally {
+            this.loading = null;
+        }
+        this.bits = newBits;
+        this.loaded = true;
+        log.info("Username filter loaded with {} usernames ({} bits, {} hashes)", count, numBits, numHashes);
+        return count;
+    }
+
+    /**
+     * Record a newly-registered username in the filter.
+     *
+     * @param username The username that has just been added to the database
+     */
+    public void add(String username) {
+        if (username == null) {
+            return;
+        }
+        AtomicLongArray target;
+        do {
+            target = bits;
+            setBits(target, username);
+            AtomicLongArray pending = loading;
+            if (pending != null) {
+                setBits(pending, username);
+            }
+            // If a load swapped in new bits meanwhile, make sure they have it too
+        } while (target != bits);
+    }
+
+    /**
+     * Check whether a username might exist.
+     *
+     * @param username The username to check
+     *
+     * @return False if the username is definitely not in the database, true
+     *         if it might be (or if the filter has not been loaded yet).
+     */
+    public boolean mightContain(String username) {
+        if (!loaded) {
+            return true;
+        }
+        lookups.incrementAndGet();
+        if (username == null) {
+            definiteMisses.incrementAndGet();
+            return false;
+        }
+        AtomicLongArray current = bits;
+        long[] hashes = hash(username);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bitIndex(hashes, i);
+            if ((current.get(bit >>> 6) & (1L << bit)) == 0) {
+                definiteMisses.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Report the outcome of a database lookup that followed a positive answer
+     * from {@link #mightContain(String)}. Used to measure the false-positive
+     * rate.
+     *
+     * @param found True if the database held the username, false otherwise
+     */
+    public void recordLookupResult(boolean found) {
+        if (!loaded) {
+            return;
+        }
+        if (found) {
+            confirmedHits.incrementAndGet();
+        } else {
+            falsePositives.incrementAndGet();
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getDefiniteMisses() {
+        return definiteMisses.get();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * The observed false-positive rate: the fraction of usernames that were
+     * not in the database but which the filter still sent to the database.
+     *
+     * @return The observed false-positive rate, or 0 if there have been no
+     *         absent usernames looked up yet
+     */
+    public double getFalsePositiveRate() {
+        long negatives = definiteMisses.get() + falsePositives.get();
+        return negatives == 0 ? 0.0 : (double) falsePositives.get() / negatives;
+    }
+
+    @Override
+    public String toString() {
+        return "UsernameFilter{" + "loaded=" + loaded + ", lookups=" + lookups + ", definiteMisses=" + definiteMisses
+                + ", confirmedHits=" + confirmedHits + ", falsePositives=" + falsePositives
+                + ", falsePositiveRate=" + getFalsePositiveRate() + '}';
+    }
+
+    private void setBits(AtomicLongArray target, String username) {
+        long[] hashes = hash(username);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = bitIndex(hashes, i);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long old;
+            do {
+                old = target.get(word);
+            } while ((old & mask) == 0 && !target.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    // Kirsch-Mitzenmacher double hashing: bit_i = h1 + i * h2
+    private int bitIndex(long[] hashes, int i) {
+        return (int) Math.floorMod(hashes[0] + i * hashes[1], (long) numBits);
+    }
+
+    // Two independent 64-bit FNV-1a style hashes of the UTF-8 bytes of the normalised username
+    private static long[] hash(String username) {
+        byte[] data = username.trim().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x84222325cbf29ce4L;
+        for (byte b : data) {
+            h1 ^= (b & 0xff);
+            h1 *= 0x100000001b3L;
+            h2 ^= (b & 0xff);
+            h2 *= 0x100000001b3L;
+            h2 ^= (h2 >>> 29);
+        }
+        // h2 must be odd so successive probes don't collapse onto one bit
+        return new long[]{h1, h2 | 1};
+    }
+}
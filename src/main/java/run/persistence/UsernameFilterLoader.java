@@ -0,0 +1,53 @@
+package run.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Loads the shared {@link UsernameFilter} once the application has started,
+ * and reloads it every <code>usernames.filter.reload-ms</code> ms. Only
+ * registrations through this instance are added to the filter straight away,
+ * so the reload is what picks up users added by other instances or directly
+ * in the database; until then those users are wrongly reported as missing.
+ * If a load fails the filter keeps its previous contents (or stays unloaded,
+ * so every lookup falls through to the database as before).
+ */
+@Slf4j
+@Component
+public class UsernameFilterLoader extends MySQLDao implements ApplicationRunner {
+    public UsernameFilterLoader() {
+        super("database.properties");
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        reload();
+    }
+
+    @Scheduled(fixedDelayString = "${usernames.filter.reload-ms:300000}",
+            initialDelayString = "${usernames.filter.reload-ms:300000}")
+    public void reload() {
+        Connection con = this.getConnection();
+        if (con == null) {
+            // The filter stays unloaded, so lookups keep going to the database
+            log.warn("No database connection, the username filter stays unloaded");
+            return;
+        }
+        try {
+            // How the filter did since startup, before it is replaced
+            log.info("Username filter stats: {}", UsernameFilter.getInstance());
+            UsernameFilter.getInstance().load(con);
+        } catch (SQLException e) {
+            // The filter stays unloaded, so lookups keep going to the database
+            DaoErrorLog.error(log, "loadUsernameFilter", e);
+        } finally {
+            this.freeConnection(con);
+        }
+    }
+}